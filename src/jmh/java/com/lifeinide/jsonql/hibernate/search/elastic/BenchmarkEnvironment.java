@@ -0,0 +1,108 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.hibernate.search.elastic.test.HibernateSearchElasticEntity;
+import com.lifeinide.jsonql.hibernate.search.elastic.test.HibernateSearchElasticQueryBuilderTest;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark state with {@link EntityManagerFactory} connected to {@link ElasticSearchStub} and the db populated with
+ * {@link #ENTITY_COUNT} entities, which are not indexed. All data is generated deterministically, so that the results are reproducible
+ * offline.
+ *
+ * @author Lukasz Frankowski
+ */
+@State(Scope.Benchmark)
+public class BenchmarkEnvironment {
+
+	public static final String PERSISTENCE_UNIT_NAME = "benchmark-jpa";
+	public static final int ENTITY_COUNT = 10000;
+
+	protected ElasticSearchStub elasticSearch;
+	protected EntityManagerFactory entityManagerFactory;
+	protected EntityManager entityManager;
+
+	@Setup
+	public void setUp() throws IOException {
+		setUp(new HashMap<>());
+	}
+
+	/**
+	 * Starts the environment with additional persistence unit properties.
+	 */
+	public void setUp(Map<String, Object> properties) throws IOException {
+		elasticSearch = new ElasticSearchStub().start();
+
+		properties = new HashMap<>(properties);
+		properties.put("hibernate.search.default.elasticsearch.host", elasticSearch.getHost());
+		entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME, properties);
+
+		EntityManager em = entityManagerFactory.createEntityManager();
+		em.getTransaction().begin();
+		for (long id = 1; id <= ENTITY_COUNT; id++) {
+			HibernateSearchElasticEntity entity = new HibernateSearchElasticEntity(id);
+			entity.setStringVal(String.format("phrase-%d", id));
+			entity.setBooleanVal(id % 2 == 0);
+			entity.setLongVal(id % 100);
+			em.persist(entity);
+			if (id % 1000 == 0) {
+				em.flush();
+				em.clear();
+			}
+		}
+		em.getTransaction().commit();
+		em.close();
+
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (entityManager!=null)
+			entityManager.close();
+		if (entityManagerFactory!=null)
+			entityManagerFactory.close();
+		if (elasticSearch!=null)
+			elasticSearch.close();
+	}
+
+	public DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> newBuilder() {
+		return newBuilder(entityManager);
+	}
+
+	public static DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> newBuilder(EntityManager entityManager) {
+		return new DefaultHibernateSearchElasticFilterQueryBuilder<>(entityManager, HibernateSearchElasticEntity.class,
+			HibernateSearchElasticQueryBuilderTest.SEARCHABLE_STRING);
+	}
+
+	/**
+	 * Returns ES {@code _search} response with given number of highlighted hits of entities stored in the db.
+	 */
+	public static String searchResponse(int hits) {
+		StringBuilder sb = new StringBuilder(hits * 300 + 128);
+		sb.append("{\"took\":3,\"timed_out\":false,\"_shards\":{\"total\":5,\"successful\":5,\"skipped\":0,\"failed\":0},")
+			.append("\"hits\":{\"total\":").append(hits).append(",\"max_score\":1.0,\"hits\":[");
+		for (int i = 1; i <= hits; i++) {
+			if (i > 1)
+				sb.append(',');
+			sb.append("{\"_index\":\"hibernatesearchelasticentity\",\"_type\":\"")
+				.append(HibernateSearchElasticEntity.class.getName())
+				.append("\",\"_id\":\"").append(i % ENTITY_COUNT + 1)
+				.append("\",\"_score\":").append(1.0 - (double) i / (hits + 1))
+				.append(",\"highlight\":{\"text\":[\"<em>in</em> <em>the</em> <em>middle</em> <em>of</em> <em>nowhere</em>\"],")
+				.append("\"stringVal\":[\"<em>phrase-").append(i % ENTITY_COUNT + 1).append("</em>\"]}}");
+		}
+		sb.append("]}}");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.core.dto.BasePageableRequest;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.HydrationMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load driver running many {@link HibernateSearchElasticFilterQueryBuilder} queries concurrently against {@link ElasticSearchStub} and
+ * reporting the throughput and latency percentiles. Since the stub replays canned responses with the configured latency, the results
+ * show the client-side cost of the library under load. Options are passed as {@code key=value} arguments:
+ *
+ * <ul>
+ * <li>{@code operation} - one of {@code highlight}, {@code highlightAsync}, {@code count} and {@code msearch}
+ * (default: {@code highlight})</li>
+ * <li>{@code threads} - the number of concurrent clients (default: 16)</li>
+ * <li>{@code duration}, {@code warmup} - the measurement and warmup time in seconds (default: 30 and 5)</li>
+ * <li>{@code hits} - the number of hits in the canned response (default: 20)</li>
+ * <li>{@code latency}, {@code jitter} - the stub response latency and its random jitter in millis (default: 5 and 0)</li>
+ * <li>{@code hydration} - {@link HydrationMode} of highlight queries (default: {@code EAGER})</li>
+ * <li>{@code batch} - the number of queries in a single {@code msearch} (default: 10)</li>
+ * </ul>
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchLoadDriver {
+
+	public static final Logger logger = LoggerFactory.getLogger(ElasticSearchLoadDriver.class);
+
+	protected String operation = "highlight";
+	protected int threads = 16;
+	protected Duration duration = Duration.ofSeconds(30);
+	protected Duration warmup = Duration.ofSeconds(5);
+	protected int hits = 20;
+	protected Duration latency = Duration.ofMillis(5);
+	protected Duration jitter = Duration.ZERO;
+	protected HydrationMode hydrationMode = HydrationMode.EAGER;
+	protected int batch = 10;
+
+	public ElasticSearchLoadDriver(Map<String, String> options) {
+		options.forEach((key, value) -> {
+			switch (key) {
+				case "operation":
+					operation = value;
+					break;
+				case "threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "duration":
+					duration = Duration.ofSeconds(Long.parseLong(value));
+					break;
+				case "warmup":
+					warmup = Duration.ofSeconds(Long.parseLong(value));
+					break;
+				case "hits":
+					hits = Integer.parseInt(value);
+					break;
+				case "latency":
+					latency = Duration.ofMillis(Long.parseLong(value));
+					break;
+				case "jitter":
+					jitter = Duration.ofMillis(Long.parseLong(value));
+					break;
+				case "hydration":
+					hydrationMode = HydrationMode.valueOf(value.toUpperCase());
+					break;
+				case "batch":
+					batch = Integer.parseInt(value);
+					break;
+				default:
+					throw new IllegalArgumentException(String.format("Unknown option: %s", key));
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (String arg: args) {
+			int i = arg.indexOf('=');
+			if (i < 0)
+				throw new IllegalArgumentException(String.format("Option should be in key=value format: %s", arg));
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+
+		System.out.println(new ElasticSearchLoadDriver(options).run());
+	}
+
+	public Report run() throws Exception {
+		BenchmarkEnvironment env = new BenchmarkEnvironment();
+
+		// the default connection pool of Hibernate Search allows only 2 connections per host
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("hibernate.search.default.elasticsearch.max_total_connection", Integer.toString(threads * 2));
+		properties.put("hibernate.search.default.elasticsearch.max_total_connection_per_route", Integer.toString(threads * 2));
+		env.setUp(properties);
+
+		try {
+			env.elasticSearch
+				.withSearchResponse(BenchmarkEnvironment.searchResponse(hits))
+				.withCountResponse(String.format("{\"count\":%d,\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0}}", hits))
+				.withLatency(latency, jitter);
+
+			logger.info("Running {} with {} threads for {}s (warmup {}s)", operation, threads, duration.getSeconds(), warmup.getSeconds());
+
+			long warmupEnd = System.nanoTime() + warmup.toNanos();
+			long end = warmupEnd + duration.toNanos();
+			AtomicLong errors = new AtomicLong();
+			List<Worker> workers = new ArrayList<>();
+			CountDownLatch done = new CountDownLatch(threads);
+
+			for (int i = 0; i < threads; i++) {
+				Worker worker = new Worker(env, warmupEnd, end, errors, done);
+				workers.add(worker);
+				Thread thread = new Thread(worker, String.format("load-driver-%d", i));
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			done.await();
+
+			LongList latencies = new LongList();
+			workers.forEach(worker -> latencies.addAll(worker.latencies));
+			return new Report(operation, threads, duration, latencies.toSortedArray(), errors.get());
+		} finally {
+			env.tearDown();
+		}
+	}
+
+	protected void execute(EntityManager entityManager) {
+		switch (operation) {
+			case "highlight":
+				BenchmarkEnvironment.newBuilder(entityManager).withHydrationMode(hydrationMode)
+					.highlight(BasePageableRequest.ofDefault().withPageSize(hits));
+				break;
+
+			case "highlightAsync":
+				BenchmarkEnvironment.newBuilder(entityManager).withHydrationMode(hydrationMode)
+					.highlightAsync(BasePageableRequest.ofDefault().withPageSize(hits)).join();
+				break;
+
+			case "count":
+				BenchmarkEnvironment.newBuilder(entityManager).count();
+				break;
+
+			case "msearch":
+				ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+				for (int i = 0; i < batch; i++)
+					multiSearch.highlight(BenchmarkEnvironment.newBuilder(entityManager).withHydrationMode(hydrationMode),
+						BasePageableRequest.ofDefault().withPageSize(hits));
+				multiSearch.execute();
+				break;
+
+			default:
+				throw new IllegalArgumentException(String.format("Unknown operation: %s", operation));
+		}
+
+		// entities are fetched in each iteration like in the real application using new entity manager for each request
+		entityManager.clear();
+	}
+
+	/**
+	 * Single client executing queries in a loop and recording their latencies after the warmup.
+	 */
+	protected class Worker implements Runnable {
+		protected final BenchmarkEnvironment env;
+		protected final long warmupEnd;
+		protected final long end;
+		protected final AtomicLong errors;
+		protected final CountDownLatch done;
+		protected final LongList latencies = new LongList();
+
+		protected Worker(BenchmarkEnvironment env, long warmupEnd, long end, AtomicLong errors, CountDownLatch done) {
+			this.env = env;
+			this.warmupEnd = warmupEnd;
+			this.end = end;
+			this.errors = errors;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			EntityManager entityManager = env.entityManagerFactory.createEntityManager();
+			try {
+				for (long start = System.nanoTime(); start - end < 0; start = System.nanoTime()) {
+					try {
+						execute(entityManager);
+						if (start - warmupEnd >= 0)
+							latencies.add(System.nanoTime() - start);
+					} catch (RuntimeException e) {
+						if (errors.incrementAndGet()==1)
+							logger.error("Query failed", e);
+					}
+				}
+			} finally {
+				entityManager.close();
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Growable list of primitive longs, not to box millions of recorded latencies.
+	 */
+	protected static class LongList {
+		protected long[] values = new long[1024];
+		protected int size = 0;
+
+		protected void add(long value) {
+			if (size==values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		protected void addAll(LongList list) {
+			for (int i = 0; i < list.size; i++)
+				add(list.values[i]);
+		}
+
+		protected long[] toSortedArray() {
+			long[] array = Arrays.copyOf(values, size);
+			Arrays.sort(array);
+			return array;
+		}
+	}
+
+	/**
+	 * Load test results.
+	 */
+	public static class Report {
+		protected final String operation;
+		protected final int threads;
+		protected final Duration duration;
+		protected final long[] latencies; // sorted
+		protected final long errors;
+
+		public Report(String operation, int threads, Duration duration, long[] latencies, long errors) {
+			this.operation = operation;
+			this.threads = threads;
+			this.duration = duration;
+			this.latencies = latencies;
+			this.errors = errors;
+		}
+
+		public long getCount() {
+			return latencies.length;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/** Successful operations per second **/
+		public double getThroughput() {
+			return latencies.length * 1e9 / duration.toNanos();
+		}
+
+		/** The latency percentile (0-100) in nanos, using the nearest-rank method **/
+		public long getPercentile(double percentile) {
+			if (latencies.length==0)
+				return 0;
+			int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+			return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: threads=%d, count=%d, errors=%d, throughput=%.1f/s, p50=%.3fms, p99=%.3fms, p999=%.3fms, max=%.3fms",
+				operation, threads, getCount(), errors, getThroughput(), millis(getPercentile(50)), millis(getPercentile(99)),
+				millis(getPercentile(99.9)), millis(getPercentile(100)));
+		}
+
+		protected static double millis(long nanos) {
+			return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for ElasticSearch, answering the version check done by Hibernate Search on startup and replaying canned responses
+ * for {@code _search}, {@code _count} and {@code _msearch} requests. {@code _msearch} returns the {@code _search} response for each
+ * query in the request, unless its response is set explicitly. Each response can be delayed with the configured latency, what allows to
+ * measure the client-side cost of the library under load. Requests are served concurrently.
+ * <p>
+ * Together with {@code index_schema_management_strategy=none} and manual indexing it allows to run the whole highlight path without a
+ * real cluster.
+ * </p>
+ *
+ * @see ElasticSearchLoadDriver
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchStub implements AutoCloseable {
+
+	public static final String VERSION = "5.6.16";
+
+	protected HttpServer server;
+	protected ExecutorService executor;
+
+	protected volatile byte[] searchResponse = "{\"took\":0,\"timed_out\":false,\"hits\":{\"total\":0,\"hits\":[]}}"
+		.getBytes(StandardCharsets.UTF_8);
+	protected volatile byte[] countResponse = "{\"count\":0,\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0}}"
+		.getBytes(StandardCharsets.UTF_8);
+	protected volatile byte[] multiSearchResponse = null;
+
+	protected volatile long latencyNanos = 0;
+	protected volatile long latencyJitterNanos = 0;
+	protected final Random random = new Random(0); // fixed seed for reproducible latencies
+
+	protected final AtomicLong requestCount = new AtomicLong();
+
+	@Nonnull public ElasticSearchStub start() throws IOException {
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "elasticsearch-stub");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+		return this;
+	}
+
+	@Nonnull public String getHost() {
+		return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+	}
+
+	/**
+	 * Returns the number of {@code _search}, {@code _count} and {@code _msearch} requests served.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Sets the response returned for all {@code _search} requests.
+	 */
+	@Nonnull public ElasticSearchStub withSearchResponse(@Nonnull String searchResponse) {
+		this.searchResponse = searchResponse.getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * Sets the response returned for all {@code _count} requests.
+	 */
+	@Nonnull public ElasticSearchStub withCountResponse(@Nonnull String countResponse) {
+		this.countResponse = countResponse.getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * Sets the response returned for all {@code _msearch} requests, instead of the {@code _search} response repeated for each query.
+	 */
+	@Nonnull public ElasticSearchStub withMultiSearchResponse(@Nonnull String multiSearchResponse) {
+		this.multiSearchResponse = multiSearchResponse.getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * Delays all responses with given latency, increased by a random value up to the jitter.
+	 */
+	@Nonnull public ElasticSearchStub withLatency(@Nonnull Duration latency, @Nonnull Duration jitter) {
+		this.latencyNanos = latency.toNanos();
+		this.latencyJitterNanos = jitter.toNanos();
+		return this;
+	}
+
+	@Nonnull public ElasticSearchStub withLatency(@Nonnull Duration latency) {
+		return withLatency(latency, Duration.ZERO);
+	}
+
+	protected void handle(HttpExchange exchange) throws IOException {
+		byte[] request = readRequest(exchange);
+		String path = exchange.getRequestURI().getPath();
+
+		if ("/".equals(path)) {
+			respond(exchange, 200, String.format("{\"version\":{\"number\":\"%s\"},\"tagline\":\"You Know, for Search\"}", VERSION)
+				.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		byte[] response;
+		if (path.endsWith("/_search"))
+			response = searchResponse;
+		else if (path.endsWith("/_count"))
+			response = countResponse;
+		else if (path.endsWith("/_msearch"))
+			response = multiSearchResponse!=null ? multiSearchResponse : buildMultiSearchResponse(request);
+		else {
+			respond(exchange, 404, String.format("{\"error\":\"Not supported by stub: %s\",\"status\":404}", path)
+				.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		requestCount.incrementAndGet();
+		delay();
+		respond(exchange, 200, response);
+	}
+
+	protected byte[] readRequest(HttpExchange exchange) throws IOException {
+		try (InputStream is = exchange.getRequestBody()) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int read; (read = is.read(buffer)) >= 0; )
+				os.write(buffer, 0, read);
+			return os.toByteArray();
+		}
+	}
+
+	/**
+	 * Builds {@code _msearch} response with the {@code _search} response for each query from the ndjson request, where each query takes
+	 * two lines: the header and the body.
+	 */
+	protected byte[] buildMultiSearchResponse(byte[] request) {
+		int lines = 0;
+		for (byte b: request)
+			if (b=='\n')
+				lines++;
+
+		byte[] searchResponse = this.searchResponse;
+		ByteArrayOutputStream os = new ByteArrayOutputStream(searchResponse.length * lines / 2 + 32);
+		os.write('{');
+		writeAscii(os, "\"responses\":[");
+		for (int i = 0; i < lines / 2; i++) {
+			if (i > 0)
+				os.write(',');
+			os.write(searchResponse, 0, searchResponse.length);
+		}
+		writeAscii(os, "]}");
+		return os.toByteArray();
+	}
+
+	protected void writeAscii(ByteArrayOutputStream os, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+		os.write(bytes, 0, bytes.length);
+	}
+
+	protected void delay() {
+		long delay = latencyNanos;
+		if (latencyJitterNanos > 0)
+			delay += (long) (random.nextDouble() * latencyJitterNanos);
+
+		if (delay > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	protected void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (server!=null)
+			server.stop(0);
+		if (executor!=null)
+			executor.shutdownNow();
+	}
+
+}
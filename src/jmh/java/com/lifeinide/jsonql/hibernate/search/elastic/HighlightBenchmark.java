@@ -0,0 +1,51 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.core.dto.BasePageableRequest;
+import com.lifeinide.jsonql.core.dto.Page;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.HydrationMode;
+import com.lifeinide.jsonql.hibernate.search.elastic.test.HibernateSearchElasticEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of {@link HibernateSearchElasticFilterQueryBuilder#highlight()} against canned ES responses, with and without fetching
+ * entities from the db.
+ *
+ * @author Lukasz Frankowski
+ */
+@State(Scope.Benchmark)
+public class HighlightBenchmark {
+
+	@Param({"20", "1000", "10000"})
+	protected int hits;
+
+	protected BasePageableRequest pageable;
+
+	@Setup
+	public void setUp(BenchmarkEnvironment env) {
+		env.elasticSearch.withSearchResponse(BenchmarkEnvironment.searchResponse(hits));
+		pageable = BasePageableRequest.ofDefault().withPageSize(hits);
+	}
+
+	@TearDown(Level.Invocation)
+	public void clear(BenchmarkEnvironment env) {
+		// don't let hydration benchmark fetch entities from the persistence context
+		env.entityManager.clear();
+	}
+
+	@Benchmark
+	public Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> highlight(BenchmarkEnvironment env) {
+		return env.newBuilder().withHydrationMode(HydrationMode.NONE).highlight(pageable);
+	}
+
+	@Benchmark
+	public Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> highlightAndHydrate(BenchmarkEnvironment env) {
+		return env.newBuilder().withHydrationMode(HydrationMode.EAGER).highlight(pageable);
+	}
+
+}
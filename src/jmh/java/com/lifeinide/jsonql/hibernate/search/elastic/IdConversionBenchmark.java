@@ -0,0 +1,37 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder.SearchableEntityInfo;
+import com.lifeinide.jsonql.hibernate.search.elastic.test.HibernateSearchElasticEntity;
+import org.hibernate.search.jpa.Search;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark of converting ES {@code _id} into the entity id with {@link SearchableEntityInfo#idConverter}, done for each hit.
+ *
+ * @author Lukasz Frankowski
+ */
+@State(Scope.Benchmark)
+public class IdConversionBenchmark {
+
+	protected SearchableEntityInfo entityInfo;
+	protected String[] ids = new String[BenchmarkEnvironment.ENTITY_COUNT];
+	protected int counter = 0;
+
+	@Setup
+	public void setUp(BenchmarkEnvironment env) {
+		entityInfo = SearchableEntityRegistry.of(env.entityManagerFactory,
+			Search.getFullTextEntityManager(env.entityManager).getSearchFactory()).get(HibernateSearchElasticEntity.class);
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = Integer.toString(i + 1);
+	}
+
+	@Benchmark
+	public Object convertId() {
+		counter = (counter + 1) % ids.length;
+		return entityInfo.idConverter.apply(ids[counter]);
+	}
+
+}
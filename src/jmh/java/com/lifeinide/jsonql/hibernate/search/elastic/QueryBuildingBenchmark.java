@@ -0,0 +1,84 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonObject;
+import com.lifeinide.jsonql.core.filters.ListQueryFilter;
+import com.lifeinide.jsonql.core.filters.SingleValueQueryFilter;
+import com.lifeinide.jsonql.elasticql.node.EQLRoot;
+import com.lifeinide.jsonql.hibernate.search.elastic.test.HibernateSearchElasticEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder.EQL_BUILDER;
+
+/**
+ * Benchmarks of building the query with {@link HibernateSearchElasticFilterQueryBuilder} and serializing it to json.
+ *
+ * @author Lukasz Frankowski
+ */
+@State(Scope.Benchmark)
+public class QueryBuildingBenchmark {
+
+	/** The number of values in the list filter and the number of nested and/or levels **/
+	@Param({"10", "1000"})
+	protected int size;
+
+	protected ListQueryFilter<SingleValueQueryFilter<Long>> listFilter;
+	protected EQLRoot eqlRoot;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp(BenchmarkEnvironment env) {
+		SingleValueQueryFilter<Long>[] filters = new SingleValueQueryFilter[size];
+		for (int i = 0; i < size; i++)
+			filters[i] = SingleValueQueryFilter.of((long) i);
+		listFilter = ListQueryFilter.of(filters);
+
+		eqlRoot = buildNested(env.newBuilder(), Math.min(size, 100)).add("longVal", listFilter).context().getEqlRoot();
+	}
+
+	protected DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> buildNested(
+		DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb, int depth) {
+		if (depth > 0) {
+			Runnable nested = () -> {
+				qb.add("booleanVal", SingleValueQueryFilter.of(depth % 2 == 0));
+				qb.add("stringVal", SingleValueQueryFilter.of(String.format("phrase-%d", depth)));
+				buildNested(qb, depth - 1);
+			};
+			if (depth % 2 == 0)
+				qb.and(nested);
+			else
+				qb.or(nested);
+		}
+
+		return qb;
+	}
+
+	@Benchmark
+	public Object construct(BenchmarkEnvironment env) {
+		return env.newBuilder();
+	}
+
+	@Benchmark
+	public Object listFilter(BenchmarkEnvironment env) {
+		return env.newBuilder().add("longVal", listFilter);
+	}
+
+	@Benchmark
+	public Object nestedAndOr(BenchmarkEnvironment env) {
+		return buildNested(env.newBuilder(), Math.min(size, 100));
+	}
+
+	@Benchmark
+	public JsonObject toJson() {
+		return EQL_BUILDER.toJson(eqlRoot);
+	}
+
+	@Benchmark
+	public String toJsonString() {
+		return EQL_BUILDER.toJsonString(eqlRoot);
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellation handle for ES requests of {@link HibernateSearchElasticFilterQueryBuilder}, for example to abandon the typeahead query
+ * when the user has already typed the next letter. Requests of builders using this handle complete immediately with
+ * {@link CancellationException} after {@link #cancel()} is called, either from another thread when waiting for the synchronous
+ * request, or for asynchronous requests. Their responses are then discarded without parsing nor fetching entities from the db.
+ * <p>
+ * ES low level client 5.6 can't abort the sent request, so the query may still run on the server side. To bound its time use
+ * {@link HibernateSearchElasticFilterQueryBuilder#withTimeout(java.time.Duration)} too.
+ * </p>
+ * <p>
+ * The handle is cancelled once and for all, so a new one should be used for each query. Cancelling the future returned by an
+ * asynchronous builder method cancels also its handle.
+ * </p>
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withCancellation(ElasticSearchCancellation)
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchCancellation {
+
+	protected volatile boolean cancelled = false;
+	protected final Set<CompletableFuture<?>> futures = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels all pending and future requests using this handle.
+	 */
+	public void cancel() {
+		cancelled = true;
+		futures.forEach(future -> future.cancel(false));
+	}
+
+	/**
+	 * Registers the future of the request to be cancelled with this handle. If the future is cancelled itself, the whole handle is
+	 * cancelled.
+	 */
+	@Nonnull protected <T> CompletableFuture<T> register(@Nonnull CompletableFuture<T> future) {
+		futures.add(future);
+		future.whenComplete((result, e) -> {
+			futures.remove(future);
+			if (future.isCancelled() && !cancelled)
+				cancel();
+		});
+
+		if (cancelled)
+			future.cancel(false);
+
+		return future;
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Cursor for paging with ElasticSearch <a href="https://www.elastic.co/guide/en/elasticsearch/reference/5.6/search-request-search-after.html">search_after</a>.
+ * Points after the given search hit using its sort values. Clients receive the cursor as an opaque string from
+ * {@link ElasticSearchHighlightedResults#getCursor()}.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#highlightAfter(String, int, com.lifeinide.jsonql.core.intr.Sortable)
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchCursor {
+
+	@Nonnull protected JsonArray after;
+
+	public ElasticSearchCursor(@Nonnull JsonArray after) {
+		this.after = after;
+	}
+
+	@Nonnull public JsonArray getAfter() {
+		return after;
+	}
+
+	@Nonnull public String encode() {
+		JsonObject json = new JsonObject();
+		json.add("after", after);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Nonnull public static ElasticSearchCursor decode(@Nonnull String cursor) {
+		try {
+			JsonObject json = new JsonParser()
+				.parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8))
+				.getAsJsonObject();
+			return new ElasticSearchCursor(json.getAsJsonArray("after"));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException(String.format("Invalid cursor: %s", cursor), e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return encode();
+	}
+
+}
@@ -0,0 +1,220 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder.HighlightResults;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Exports all results of {@link HibernateSearchElasticFilterQueryBuilder} query using
+ * <a href="https://www.elastic.co/guide/en/elasticsearch/reference/5.6/search-request-scroll.html#sliced-scroll">sliced scroll</a>.
+ * Each slice is scrolled in parallel on the given executor, and the fetched batches are passed through a bounded queue to the thread
+ * consuming the stream. Entities are fetched from the db in the consuming thread, because {@link javax.persistence.EntityManager} is
+ * not thread-safe. When the consumer is slower than ES, slices wait for the free space in the queue.
+ * <p>
+ * Slice requests are executed by the builder, so that its deadline applies to each request, its cancellation handle stops all slices,
+ * and each fetched page is reported to its {@link com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryInstrumentation} as
+ * {@code "export"} query.
+ * </p>
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#exportBatches(int, int, Executor)
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchExport<E> implements Spliterator<List<E>> {
+
+	public static final Logger logger = LoggerFactory.getLogger(ElasticSearchExport.class);
+	public static final String SCROLL_KEEP_ALIVE = "1m";
+	public static final long QUEUE_POLL_MILLIS = 100;
+
+	protected static final Object SLICE_DONE = new Object();
+
+	@Nonnull protected HibernateSearchElasticFilterQueryBuilder<E, ?, ?, ?> builder;
+	protected int slices;
+	protected int batchSize;
+	@Nonnull protected Executor executor;
+
+	protected BlockingQueue<Object> queue;
+	protected volatile boolean closed = false;
+	protected int slicesDone = 0;
+	protected boolean started = false;
+
+	public ElasticSearchExport(@Nonnull HibernateSearchElasticFilterQueryBuilder<E, ?, ?, ?> builder, int slices, int batchSize,
+							   @Nonnull Executor executor) {
+		if (slices < 1)
+			throw new IllegalArgumentException("At least one slice is required");
+
+		this.builder = builder;
+		this.slices = slices;
+		this.batchSize = batchSize;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<>(slices);
+	}
+
+	@Nonnull public Stream<List<E>> stream() {
+		return StreamSupport.stream(this, false).onClose(this::close);
+	}
+
+	/**
+	 * Stops scrolling all slices. Batches already fetched are dropped.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+	}
+
+	protected void start() {
+		started = true;
+
+		String indexName = builder.prepareExport(batchSize);
+
+		for (int i = 0; i < slices; i++) {
+			JsonObject query = builder.buildQuery();
+			if (slices > 1) {
+				JsonObject slice = new JsonObject();
+				slice.addProperty("id", i);
+				slice.addProperty("max", slices);
+				query.add("slice", slice);
+			}
+			String body = query.toString();
+			executor.execute(() -> scrollSlice(indexName, body));
+		}
+	}
+
+	protected void scrollSlice(String indexName, String body) {
+		String scrollId = null;
+
+		try {
+			Map<String, String> params = builder.indexParams();
+			params.put("scroll", SCROLL_KEEP_ALIVE);
+			HighlightResults<?> results = fetchPage(String.format("/%s/_search", indexName), params, body);
+
+			while (true) {
+				scrollId = results.response.getScrollId();
+				if (results.resultList.isEmpty() || !put(results))
+					break;
+
+				ElasticSearchCancellation cancellation = builder.getCancellation();
+				if (cancellation!=null && cancellation.isCancelled())
+					throw new CancellationException("Export has been cancelled");
+
+				JsonObject scroll = new JsonObject();
+				scroll.addProperty("scroll", SCROLL_KEEP_ALIVE);
+				scroll.addProperty("scroll_id", scrollId);
+				results = fetchPage("/_search/scroll", new HashMap<>(), scroll.toString());
+			}
+
+			put(SLICE_DONE);
+		} catch (Exception e) {
+			put(e);
+		} finally {
+			if (scrollId!=null)
+				clearScroll(scrollId);
+		}
+	}
+
+	/**
+	 * Fetches a single page of the slice with the builder, applying its deadline and cancellation, and reporting the page metrics.
+	 */
+	protected HighlightResults<?> fetchPage(String endpoint, Map<String, String> params, String body) {
+		return builder.executeRequest("export", metrics -> {
+			metrics.setQuery(body);
+			return builder.parseHighlightResponse(builder.responseReader(builder.performRequest(endpoint, params, body, metrics)),
+				metrics);
+		});
+	}
+
+	protected void clearScroll(String scrollId) {
+		try {
+			JsonObject clear = new JsonObject();
+			JsonArray scrollIds = new JsonArray();
+			scrollIds.add(scrollId);
+			clear.add("scroll_id", scrollIds);
+			builder.restClient().performRequest("DELETE", "/_search/scroll", new HashMap<>(),
+				new NStringEntity(clear.toString(), ContentType.APPLICATION_JSON));
+		} catch (IOException e) {
+			logger.warn("Cannot clear scroll: {}", scrollId, e);
+		}
+	}
+
+	/**
+	 * Waits for the space in the queue unless the export is closed. Returns {@code false} if the export has been closed.
+	 */
+	protected boolean put(Object o) {
+		try {
+			while (!closed)
+				if (queue.offer(o, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS))
+					return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean tryAdvance(Consumer<? super List<E>> action) {
+		if (!started)
+			start();
+
+		try {
+			while (!closed && slicesDone < slices) {
+				Object o = queue.take();
+
+				if (o==SLICE_DONE)
+					slicesDone++;
+
+				else if (o instanceof CancellationException) {
+					close();
+					throw (CancellationException) o;
+
+				} else if (o instanceof Exception) {
+					close();
+					throw new RuntimeException("Error exporting results from ES low level client", (Exception) o);
+
+				} else {
+					HighlightResults<? extends ElasticSearchHighlightedResults<E>> results =
+						(HighlightResults<? extends ElasticSearchHighlightedResults<E>>) o;
+					builder.loadEntities(results.resultList);
+					List<E> entities = new ArrayList<>(results.resultList.size());
+					for (ElasticSearchHighlightedResults<E> result: results.resultList)
+						if (result.getEntity()!=null)
+							entities.add(result.getEntity());
+					action.accept(entities);
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+		}
+
+		return false;
+	}
+
+	@Override
+	public Spliterator<List<E>> trySplit() {
+		return null;
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return NONNULL;
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Facet counts computed from ES aggregation declared with {@code with*Facet()} methods of
+ * {@link HibernateSearchElasticFilterQueryBuilder}.
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchFacet {
+
+	protected String name;
+	protected List<Bucket> buckets = new ArrayList<>();
+
+	public ElasticSearchFacet(@Nonnull String name) {
+		this.name = name;
+	}
+
+	@Nonnull public String getName() {
+		return name;
+	}
+
+	@Nonnull public List<Bucket> getBuckets() {
+		return buckets;
+	}
+
+	/**
+	 * Returns counts by the bucket key, in the buckets order.
+	 */
+	@Nonnull public Map<String, Long> getCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		buckets.forEach(bucket -> counts.put(bucket.getKey(), bucket.getCount()));
+		return counts;
+	}
+
+	/**
+	 * Returns the count for given bucket key, or {@code 0} if there's no such bucket.
+	 */
+	public long getCount(@Nonnull String key) {
+		for (Bucket bucket: buckets)
+			if (key.equals(bucket.getKey()))
+				return bucket.getCount();
+		return 0;
+	}
+
+	/**
+	 * Single facet bucket. The key is the term value for terms facets, the formatted date for date histogram facets and
+	 * {@code from-to} for range facets.
+	 */
+	public static class Bucket {
+		protected String key;
+		protected long count;
+		@Nullable protected Double from;
+		@Nullable protected Double to;
+
+		public Bucket(@Nonnull String key, long count, @Nullable Double from, @Nullable Double to) {
+			this.key = key;
+			this.count = count;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Nonnull public String getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/** The inclusive lower bound of the range facet bucket, or {@code null} if unbounded **/
+		@Nullable public Double getFrom() {
+			return from;
+		}
+
+		/** The exclusive upper bound of the range facet bucket, or {@code null} if unbounded **/
+		@Nullable public Double getTo() {
+			return to;
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Query results together with facets computed in the same ES request.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#highlightWithFacets(com.lifeinide.jsonql.core.intr.Pageable, com.lifeinide.jsonql.core.intr.Sortable)
+ * @see HibernateSearchElasticFilterQueryBuilder#countWithFacets()
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchFacetedResults<T> {
+
+	protected T results;
+	protected Map<String, ElasticSearchFacet> facets;
+
+	public ElasticSearchFacetedResults(@Nonnull T results, @Nonnull Map<String, ElasticSearchFacet> facets) {
+		this.results = results;
+		this.facets = facets;
+	}
+
+	@Nonnull public T getResults() {
+		return results;
+	}
+
+	/**
+	 * Returns facets by their names.
+	 */
+	@Nonnull public Map<String, ElasticSearchFacet> getFacets() {
+		return facets;
+	}
+
+	@Nullable public ElasticSearchFacet getFacet(@Nonnull String name) {
+		return facets.get(name);
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonObject;
+import com.lifeinide.jsonql.core.intr.Pageable;
+import com.lifeinide.jsonql.core.intr.Sortable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Highlighting settings for {@link HibernateSearchElasticFilterQueryBuilder#highlight(Pageable, Sortable)}, which can be shared among
+ * builders. Unset values are left to ES defaults. See
+ * <a href="https://www.elastic.co/guide/en/elasticsearch/reference/5.6/search-request-highlighting.html">ES docs</a> for details.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withHighlightOptions(ElasticSearchHighlightOptions)
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchHighlightOptions {
+
+	/**
+	 * ES highlighter implementation.
+	 */
+	public enum HighlighterType {
+
+		/** Re-analyzes the stored text of each hit, the default one, slow for long texts **/
+		PLAIN,
+
+		/**
+		 * Splits the text into sentences and uses postings, or term vectors if present, instead of re-analyzing the text. Works without
+		 * any mapping changes, but is faster with term vectors.
+		 */
+		UNIFIED,
+
+		/**
+		 * Fast vector highlighter, requires all highlighted fields to be indexed with term vectors with positions and offsets. In Hibernate
+		 * Search use {@code @Field(name = HibernateSearch.FIELD_TEXT, termVector = TermVector.WITH_POSITION_OFFSETS)} for all such fields.
+		 */
+		FVH;
+
+		@Nonnull public String getName() {
+			return name().toLowerCase();
+		}
+
+	}
+
+	@Nullable protected Integer fragmentSize;
+	@Nullable protected Integer numberOfFragments;
+	@Nullable protected Integer noMatchSize;
+	@Nullable protected HighlighterType type;
+	@Nullable protected Integer topHits;
+
+	@Nullable public Integer getFragmentSize() {
+		return fragmentSize;
+	}
+
+	/**
+	 * Sets the size of highlighted fragments in characters.
+	 */
+	@Nonnull public ElasticSearchHighlightOptions withFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+		return this;
+	}
+
+	@Nullable public Integer getNumberOfFragments() {
+		return numberOfFragments;
+	}
+
+	/**
+	 * Sets the maximum number of fragments returned for each field. With {@code 0} the whole field content is highlighted and returned.
+	 */
+	@Nonnull public ElasticSearchHighlightOptions withNumberOfFragments(int numberOfFragments) {
+		this.numberOfFragments = numberOfFragments;
+		return this;
+	}
+
+	@Nullable public Integer getNoMatchSize() {
+		return noMatchSize;
+	}
+
+	/**
+	 * Sets the length of the field beginning returned when there's no highlighted fragment.
+	 */
+	@Nonnull public ElasticSearchHighlightOptions withNoMatchSize(int noMatchSize) {
+		this.noMatchSize = noMatchSize;
+		return this;
+	}
+
+	@Nullable public HighlighterType getType() {
+		return type;
+	}
+
+	@Nonnull public ElasticSearchHighlightOptions withType(@Nonnull HighlighterType type) {
+		this.type = type;
+		return this;
+	}
+
+	@Nullable public Integer getTopHits() {
+		return topHits;
+	}
+
+	/**
+	 * Highlights only the first {@code topHits} hits of the page, while the rest comes back without highlights. The page is then fetched
+	 * with a single {@code _msearch} request made of two searches, only the first of them highlighted.
+	 */
+	@Nonnull public ElasticSearchHighlightOptions withTopHits(int topHits) {
+		this.topHits = topHits;
+		return this;
+	}
+
+	/**
+	 * Applies these settings to ES {@code highlight} json.
+	 */
+	public void apply(@Nonnull JsonObject highlight) {
+		if (fragmentSize!=null)
+			highlight.addProperty("fragment_size", fragmentSize);
+		if (numberOfFragments!=null)
+			highlight.addProperty("number_of_fragments", numberOfFragments);
+		if (noMatchSize!=null)
+			highlight.addProperty("no_match_size", noMatchSize);
+		if (type!=null)
+			highlight.addProperty("type", type.getName());
+	}
+
+}
@@ -18,6 +18,9 @@ public class ElasticSearchHighlightedResults<E> {
 	protected String type;
 	protected double score;
 	protected String highlight;
+	protected ElasticSearchCursor cursor;
+	protected Object projection;
+	protected transient Runnable lazyEntityLoader;
 
 	public ElasticSearchHighlightedResults() {
 	}
@@ -35,6 +38,8 @@ public class ElasticSearchHighlightedResults<E> {
 	 * be {@code null}.
 	 */
 	@Nullable public E getEntity() {
+		if (lazyEntityLoader!=null)
+			lazyEntityLoader.run();
 		return entity;
 	}
 
@@ -42,6 +47,27 @@ public class ElasticSearchHighlightedResults<E> {
 		this.entity = entity;
 	}
 
+	/**
+	 * Sets the loader called on the first {@link #getEntity()} call. The loader is expected to set entities for this result (and
+	 * possibly other ones) and clear their loaders.
+	 */
+	public void setLazyEntityLoader(@Nullable Runnable lazyEntityLoader) {
+		this.lazyEntityLoader = lazyEntityLoader;
+	}
+
+	/**
+	 * Returns {@code _source} of this result mapped to the projection class, if requested with
+	 * {@link HibernateSearchElasticFilterQueryBuilder#withSourceProjection(Class)}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable public <D> D getProjection() {
+		return (D) projection;
+	}
+
+	public void setProjection(@Nullable Object projection) {
+		this.projection = projection;
+	}
+
 	public double getScore() {
 		return score;
 	}
@@ -57,4 +83,17 @@ public class ElasticSearchHighlightedResults<E> {
 	@Nonnull public String getType() {
 		return type;
 	}
+
+	/**
+	 * Opaque cursor pointing after this result, to be used to fetch the next page with
+	 * {@link HibernateSearchElasticFilterQueryBuilder#highlightAfter(String, int, Sortable)}. Available only for results fetched with
+	 * this method.
+	 */
+	@Nullable public String getCursor() {
+		return cursor!=null ? cursor.encode() : null;
+	}
+
+	public void setCursor(@Nullable ElasticSearchCursor cursor) {
+		this.cursor = cursor;
+	}
 }
@@ -0,0 +1,376 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.lifeinide.jsonql.core.dto.BasePageableRequest;
+import com.lifeinide.jsonql.core.dto.Page;
+import com.lifeinide.jsonql.core.intr.Pageable;
+import com.lifeinide.jsonql.core.intr.PageableSortable;
+import com.lifeinide.jsonql.core.intr.Sortable;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder.HighlightResults;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryMetrics;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryPhase;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.HydrationMode;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Executes many {@link HibernateSearchElasticFilterQueryBuilder} queries in a single ElasticSearch {@code _msearch} round trip.
+ * Entities for all highlighted results in the batch are then fetched from the db with a single query per entity type and loader.
+ *
+ * <pre>{@code
+ * ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+ * CompletableFuture<Page<ElasticSearchHighlightedResults<User>>> users = multiSearch.highlight(usersQb, pageable);
+ * CompletableFuture<Long> adminsCount = multiSearch.count(adminsQb);
+ * multiSearch.execute();
+ * }</pre>
+ *
+ * Futures returned when adding queries are completed by {@link #execute()}. All builders should use the same {@link EntityManager} or
+ * at least the same persistence unit. Entities are fetched together only for builders with {@link HydrationMode#EAGER}.
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchMultiSearch {
+
+	public static final Logger logger = LoggerFactory.getLogger(ElasticSearchMultiSearch.class);
+	public static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+	protected List<Request<?>> requests = new ArrayList<>();
+
+	/**
+	 * Adds highlight query to the batch. The query highlighting only {@link ElasticSearchHighlightOptions#withTopHits(int) top hits} is
+	 * split into two searches of the batch, returning the same results as the single highlight query.
+	 *
+	 * @see HibernateSearchElasticFilterQueryBuilder#highlight(Pageable, Sortable)
+	 */
+	@Nonnull public <E, H extends ElasticSearchHighlightedResults<E>, PH extends Page<H>> CompletableFuture<PH> highlight(
+		@Nonnull HibernateSearchElasticFilterQueryBuilder<E, H, ?, PH> builder, @Nullable Pageable pageable, @Nullable Sortable<?> sortable) {
+		HighlightRequest<E, H, PH> request = new HighlightRequest<>(builder,
+			pageable!=null ? pageable : BasePageableRequest.ofUnpaged(),
+			sortable!=null ? sortable : BasePageableRequest.ofUnpaged());
+		requests.add(request);
+		return request.future;
+	}
+
+	/** @see #highlight(HibernateSearchElasticFilterQueryBuilder, Pageable, Sortable) **/
+	@Nonnull public <E, H extends ElasticSearchHighlightedResults<E>, PH extends Page<H>> CompletableFuture<PH> highlight(
+		@Nonnull HibernateSearchElasticFilterQueryBuilder<E, H, ?, PH> builder, @Nullable Pageable pageable) {
+		return highlight(builder, pageable, null);
+	}
+
+	/** @see #highlight(HibernateSearchElasticFilterQueryBuilder, Pageable, Sortable) **/
+	@Nonnull public <E, H extends ElasticSearchHighlightedResults<E>, PH extends Page<H>> CompletableFuture<PH> highlight(
+		@Nonnull HibernateSearchElasticFilterQueryBuilder<E, H, ?, PH> builder, @Nullable PageableSortable<?> ps) {
+		return highlight(builder, ps, ps);
+	}
+
+	/**
+	 * Adds count query to the batch.
+	 *
+	 * @see HibernateSearchElasticFilterQueryBuilder#countAsync()
+	 */
+	@Nonnull public CompletableFuture<Long> count(@Nonnull HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?> builder) {
+		CountRequest request = new CountRequest(builder);
+		requests.add(request);
+		return request.future;
+	}
+
+	/**
+	 * Executes all added queries in a single {@code _msearch} request and completes their futures. Failures of single queries complete
+	 * only their own futures exceptionally, while the failure of the whole request completes all of them and is rethrown.
+	 * <p>
+	 * The request is executed by the first added builder, so that its deadline, cancellation, instrumentation and query cache apply to
+	 * the whole batch. Entities are fetched by builders of the respective queries, where queries with the same {@link EntityManager}
+	 * and equal {@link HibernateSearchElasticFilterQueryBuilder#getEntityLoader() entity loaders} share the db queries.
+	 * </p>
+	 */
+	public void execute() {
+		if (requests.isEmpty())
+			return;
+
+		List<Request<?>> requests = this.requests;
+		this.requests = new ArrayList<>();
+
+		HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?> executor = requests.get(0).builder;
+		try {
+			executor.executeRequest("multiSearch", metrics -> {
+				long start = System.nanoTime();
+				JsonArray searches = new JsonArray();
+				for (Request<?> request: requests)
+					request.addSearches(searches, metrics);
+				executor.recordBuildPhase(metrics, start);
+
+				Reader responseReader = executor.performMultiSearch(searches,
+					executor.isQueryCacheUsed() ? queryCacheTypes(requests) : null, metrics);
+
+				start = System.nanoTime();
+				try (ResponseReader reader = new ResponseReader(responseReader)) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						if ("responses".equals(reader.nextName())) {
+							reader.beginArray();
+							for (Request<?> request: requests)
+								request.parse(reader);
+							reader.endArray();
+						} else
+							reader.skipValue();
+					}
+					reader.endObject();
+				}
+				executor.recordPhase(metrics, QueryPhase.PARSE, start);
+
+				// fetch entities for all successful highlight requests, grouped by entity manager and entity loader they use
+				Map<List<Object>, List<ElasticSearchHighlightedResults>> resultsByLoader = new LinkedHashMap<>();
+				Map<List<Object>, HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?>> builderByLoader = new HashMap<>();
+				for (Request<?> request: requests) {
+					if (request.failure==null) {
+						List<Object> loaderKey = Arrays.asList(request.builder.context().getHibernateSearch().entityManager(),
+							request.builder.getEntityLoader());
+						builderByLoader.putIfAbsent(loaderKey, request.builder);
+						request.collectResults(resultsByLoader.computeIfAbsent(loaderKey, it -> new ArrayList<>()), metrics);
+					}
+				}
+				resultsByLoader.forEach((loaderKey, resultList) ->
+					builderByLoader.get(loaderKey).loadEntitiesMeasured(resultList, metrics));
+
+				requests.forEach(Request::complete);
+				return null;
+			});
+		} catch (RuntimeException e) {
+			requests.forEach(request -> request.future.completeExceptionally(e));
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns entity types of all queries, or empty collection if any of them is the unlimited global search.
+	 */
+	protected Collection<Class<?>> queryCacheTypes(List<Request<?>> requests) {
+		Set<Class<?>> types = new LinkedHashSet<>();
+		for (Request<?> request: requests) {
+			Collection<Class<?>> requestTypes = request.builder.queryCacheTypes();
+			if (requestTypes.isEmpty())
+				return Collections.emptyList();
+			types.addAll(requestTypes);
+		}
+		return types;
+	}
+
+	/**
+	 * Json reader of the {@code _msearch} response, tracking the nesting level to skip the rest of the query response which failed to be
+	 * parsed.
+	 */
+	protected static class ResponseReader extends JsonReader {
+		protected int depth = 0;
+
+		public ResponseReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public void beginArray() throws IOException {
+			super.beginArray();
+			depth++;
+		}
+
+		@Override
+		public void endArray() throws IOException {
+			super.endArray();
+			depth--;
+		}
+
+		@Override
+		public void beginObject() throws IOException {
+			super.beginObject();
+			depth++;
+		}
+
+		@Override
+		public void endObject() throws IOException {
+			super.endObject();
+			depth--;
+		}
+
+		/**
+		 * Skips the rest of the value started at given depth and path, or the whole value if it hasn't been started yet.
+		 */
+		protected void skipTo(int depth, String path) throws IOException {
+			while (this.depth > depth) {
+				JsonToken token = peek();
+				if (token==JsonToken.END_OBJECT)
+					endObject();
+				else if (token==JsonToken.END_ARRAY)
+					endArray();
+				else if (token==JsonToken.NAME)
+					nextName();
+				else
+					skipValue();
+			}
+
+			// the same path on the same level means that the value hasn't been consumed
+			if (path.equals(getPath()))
+				skipValue();
+		}
+	}
+
+	/**
+	 * Single query in the batch.
+	 */
+	protected abstract static class Request<T> {
+		@Nonnull protected HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?> builder;
+		@Nonnull protected CompletableFuture<T> future = new CompletableFuture<>();
+		@Nullable protected RuntimeException failure;
+		/** Number of searches added to the batch by this query **/
+		protected int searchCount = 1;
+
+		protected Request(@Nonnull HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?> builder) {
+			this.builder = builder;
+		}
+
+		/** Prepares the builder query and returns the target index name **/
+		protected abstract String prepare();
+
+		/** Adds header and query of this request to the list of searches **/
+		protected void addSearches(JsonArray searches, @Nullable QueryMetrics metrics) {
+			searches.add(builder.multiSearchHeader(prepare()));
+			searches.add(builder.buildQuery(metrics));
+		}
+
+		/**
+		 * Reads {@link #searchCount} responses of this query from the current reader position. If the response can't be parsed, the rest
+		 * of it is skipped so that next responses can be read.
+		 */
+		protected void parse(ResponseReader reader) throws IOException {
+			for (int i = 0; i < searchCount; i++) {
+				int depth = reader.depth;
+				String path = reader.getPath();
+				if (failure!=null) {
+					reader.skipValue();
+					continue;
+				}
+
+				try {
+					doParse(reader);
+				} catch (RuntimeException e) {
+					logger.debug("Multi search query failed", e);
+					failure = e;
+					reader.skipTo(depth, path);
+				}
+			}
+		}
+
+		protected abstract void doParse(JsonReader reader) throws IOException;
+
+		/** Adds highlighted results requiring entities to be fetched from the db to the list **/
+		protected void collectResults(List<ElasticSearchHighlightedResults> resultList, @Nullable QueryMetrics metrics) {
+		}
+
+		protected void complete() {
+			if (failure!=null)
+				future.completeExceptionally(failure);
+			else
+				future.complete(result());
+		}
+
+		protected abstract T result();
+	}
+
+	protected static class HighlightRequest<E, H extends ElasticSearchHighlightedResults<E>, PH extends Page<H>> extends Request<PH> {
+		@Nonnull protected HibernateSearchElasticFilterQueryBuilder<E, H, ?, PH> highlightBuilder;
+		@Nonnull protected Pageable pageable;
+		@Nonnull protected Sortable<?> sortable;
+		protected HighlightResults<H> results;
+
+		protected HighlightRequest(@Nonnull HibernateSearchElasticFilterQueryBuilder<E, H, ?, PH> builder, @Nonnull Pageable pageable,
+								   @Nonnull Sortable<?> sortable) {
+			super(builder);
+			this.highlightBuilder = builder;
+			this.pageable = pageable;
+			this.sortable = sortable;
+		}
+
+		@Override
+		protected String prepare() {
+			return highlightBuilder.prepareHighlight(pageable, sortable);
+		}
+
+		/**
+		 * Splits the query the same way as {@link HibernateSearchElasticFilterQueryBuilder#highlight(Pageable, Sortable)} does, when only
+		 * top hits are to be highlighted.
+		 */
+		@Override
+		protected void addSearches(JsonArray searches, @Nullable QueryMetrics metrics) {
+			JsonObject header = highlightBuilder.multiSearchHeader(prepare());
+			JsonObject query = highlightBuilder.buildQuery(metrics);
+			JsonObject restQuery = highlightBuilder.splitHighlightQuery(query);
+			if (restQuery!=null)
+				highlightBuilder.splitSearchPreference(header, query);
+
+			searches.add(header);
+			searches.add(query);
+			if (restQuery!=null) {
+				searches.add(header);
+				searches.add(restQuery);
+				searchCount = 2;
+			}
+		}
+
+		@Override
+		protected void doParse(JsonReader reader) throws IOException {
+			HighlightResults<H> partResults = highlightBuilder.parseHighlightResponse(reader);
+			if (results==null)
+				results = partResults;
+			else
+				highlightBuilder.mergeSplitHighlightResults(results, partResults);
+		}
+
+		@Override
+		protected void collectResults(List<ElasticSearchHighlightedResults> resultList, @Nullable QueryMetrics metrics) {
+			if (highlightBuilder.getHydrationMode()==HydrationMode.EAGER)
+				resultList.addAll(results.resultList);
+			else
+				highlightBuilder.loadEntities(results, metrics);
+		}
+
+		@Override
+		protected PH result() {
+			return highlightBuilder.buildHighlightPage(pageable, results);
+		}
+	}
+
+	protected static class CountRequest extends Request<Long> {
+		protected long total;
+
+		protected CountRequest(@Nonnull HibernateSearchElasticFilterQueryBuilder<?, ?, ?, ?> builder) {
+			super(builder);
+		}
+
+		@Override
+		protected String prepare() {
+			return builder.prepareCount();
+		}
+
+		@Override
+		protected void doParse(JsonReader reader) throws IOException {
+			total = builder.parseHighlightResponse(reader).total;
+		}
+
+		@Override
+		protected Long result() {
+			return total;
+		}
+	}
+
+}
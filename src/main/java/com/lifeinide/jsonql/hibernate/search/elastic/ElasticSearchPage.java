@@ -0,0 +1,63 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.core.dto.Page;
+
+import java.util.List;
+
+/**
+ * {@link Page} of ES results, telling whether the results are complete. The results are partial when the search
+ * {@link HibernateSearchElasticFilterQueryBuilder#withTimeout(java.time.Duration) timed out} on the server side,
+ * {@link HibernateSearchElasticFilterQueryBuilder#withTerminateAfter(Integer) terminated early}, or some shards failed. In such case
+ * the page contains hits collected so far, and the count is only the lower bound.
+ * <p>
+ * This is the default page type of {@link HibernateSearchElasticFilterQueryBuilder}. The flags are set only for highlighted results
+ * fetched with ES low level client, while pages of {@code list()} executed by Hibernate Search never report them.
+ * </p>
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchPage<T> extends Page<T> {
+
+	protected boolean timedOut = false;
+	protected boolean terminatedEarly = false;
+	protected int failedShards = 0;
+
+	public ElasticSearchPage() {
+	}
+
+	public ElasticSearchPage(Integer pageSize, Integer page, long count, List<T> data) {
+		super(pageSize, page, count, data);
+	}
+
+	/** Whether the search timed out on the server side **/
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	public void setTimedOut(boolean timedOut) {
+		this.timedOut = timedOut;
+	}
+
+	/** Whether the search was terminated after collecting the requested number of documents on some shard **/
+	public boolean isTerminatedEarly() {
+		return terminatedEarly;
+	}
+
+	public void setTerminatedEarly(boolean terminatedEarly) {
+		this.terminatedEarly = terminatedEarly;
+	}
+
+	/** The number of shards failed to execute the search **/
+	public int getFailedShards() {
+		return failedShards;
+	}
+
+	public void setFailedShards(int failedShards) {
+		this.failedShards = failedShards;
+	}
+
+	public boolean isPartial() {
+		return timedOut || terminatedEarly || failedShards > 0;
+	}
+
+}
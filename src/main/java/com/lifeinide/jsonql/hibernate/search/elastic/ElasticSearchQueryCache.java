@@ -0,0 +1,268 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.search.annotations.ContainedIn;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.IndexedEmbedded;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.AccessibleObject;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client-side cache of ES responses for {@link HibernateSearchElasticFilterQueryBuilder} queries, shared among builders with
+ * {@link HibernateSearchElasticFilterQueryBuilder#withQueryCache(ElasticSearchQueryCache)}. Responses are cached by the endpoint
+ * (containing the target indexes) and the canonical query json (containing the paging), and are evicted after the TTL or when the cache
+ * exceeds its maximum size, in the least recently used order. Only ES responses are cached, while entities are always fetched from the
+ * db.
+ * <p>
+ * When {@link #attach(EntityManagerFactory) attached} to {@link EntityManagerFactory}, entries for the entity type are invalidated
+ * when the entity of this type is inserted, updated or deleted and the transaction is committed. Changes of collections only, like
+ * these mapped with {@link IndexedEmbedded}, invalidate entries for the collection owner type after the commit in the same way.
+ * Changes to entities not indexed themselves or having {@link ContainedIn} associations can change any index, so they invalidate the
+ * whole cache. Note, that ES makes index changes visible only after the index refresh, so the query executed just after the commit
+ * can still cache the previous results. To bound such staleness use short TTL, or configure Hibernate Search to refresh indexes after
+ * writes. Changes made outside of Hibernate ORM, like mass indexing, should be followed by {@link #invalidate(Class)} or
+ * {@link #invalidateAll()}.
+ * </p>
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchQueryCache {
+
+	public static final Logger logger = LoggerFactory.getLogger(ElasticSearchQueryCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+	public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+
+	protected final int maxSize;
+	protected final long ttlNanos;
+	protected final Map<String, Entry> entries;
+
+	/** Version incremented on each invalidation, entries created before the invalidation of their type are stale **/
+	protected long version = 0;
+	protected long allInvalidatedVersion = 0;
+	protected final Map<Class<?>, Long> invalidatedVersions = new HashMap<>();
+
+	/** Whether changes of the entity class can change indexes of other entities **/
+	protected final Map<Class<?>, Boolean> invalidatesAll = new ConcurrentHashMap<>();
+
+	public ElasticSearchQueryCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+	}
+
+	public ElasticSearchQueryCache(int maxSize, @Nonnull Duration ttl) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > ElasticSearchQueryCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Registers Hibernate ORM listeners invalidating the cache when entities are changed.
+	 */
+	@Nonnull public ElasticSearchQueryCache attach(@Nonnull EntityManagerFactory entityManagerFactory) {
+		EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+			.getService(EventListenerRegistry.class);
+		InvalidatingListener listener = new InvalidatingListener();
+		registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+		registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+		registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+		registry.appendListeners(EventType.POST_COLLECTION_RECREATE, listener);
+		registry.appendListeners(EventType.POST_COLLECTION_UPDATE, listener);
+		registry.appendListeners(EventType.POST_COLLECTION_REMOVE, listener);
+		return this;
+	}
+
+	/**
+	 * Returns the current cache version, to be passed to {@link #put(String, Collection, long, String)} for the response being fetched.
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Returns cached response or {@code null} if there's no valid response cached.
+	 */
+	@Nullable public synchronized String get(@Nonnull String key) {
+		Entry entry = entries.get(key);
+		if (entry==null)
+			return null;
+
+		if (entry.expiresAt - System.nanoTime() < 0 || isInvalidated(entry.types, entry.version)) {
+			entries.remove(key);
+			return null;
+		}
+
+		return entry.response;
+	}
+
+	/**
+	 * Caches the response of query for given entity types, or for all types if the collection is empty. The response isn't cached, if
+	 * any of these types has been invalidated since the {@code version} obtained before fetching the response.
+	 */
+	public synchronized void put(@Nonnull String key, @Nonnull Collection<Class<?>> types, long version, @Nonnull String response) {
+		if (!isInvalidated(types, version))
+			entries.put(key, new Entry(types, this.version, System.nanoTime() + ttlNanos, response));
+	}
+
+	protected boolean isInvalidated(Collection<Class<?>> types, long version) {
+		if (allInvalidatedVersion > version)
+			return true;
+
+		for (Map.Entry<Class<?>, Long> invalidated: invalidatedVersions.entrySet())
+			if (invalidated.getValue() > version) {
+				if (types.isEmpty())
+					return true;
+				for (Class<?> type: types)
+					if (type.isAssignableFrom(invalidated.getKey()) || invalidated.getKey().isAssignableFrom(type))
+						return true;
+			}
+
+		return false;
+	}
+
+	/**
+	 * Invalidates all entries for given entity type.
+	 */
+	public synchronized void invalidate(@Nonnull Class<?> entityClass) {
+		invalidatedVersions.put(entityClass, ++version);
+	}
+
+	public synchronized void invalidateAll() {
+		allInvalidatedVersion = ++version;
+		invalidatedVersions.clear();
+		entries.clear();
+	}
+
+	protected void invalidate(EntityPersister persister) {
+		Class<?> entityClass = persister.getMappedClass();
+		if (entityClass==null)
+			return;
+
+		if (invalidatesAll.computeIfAbsent(entityClass, this::isContainedInOtherIndexes)) {
+			logger.trace("Invalidating whole cache for: {}", entityClass.getSimpleName());
+			invalidateAll();
+		} else
+			invalidate(entityClass);
+	}
+
+	/**
+	 * Invalidates entries for the owner of changed collection. Collection events are fired on flush, so the invalidation is postponed
+	 * until the transaction is committed, otherwise queries executed between the flush and the commit could cache previous results again.
+	 */
+	protected void invalidateAfterCommit(AbstractCollectionEvent event) {
+		String ownerEntityName = event.getAffectedOwnerEntityName();
+		if (ownerEntityName==null)
+			return;
+
+		EntityPersister persister = event.getSession().getFactory().getMetamodel().entityPersister(ownerEntityName);
+		event.getSession().getActionQueue().registerProcess((AfterTransactionCompletionProcess) (success, session) -> {
+			if (success)
+				invalidate(persister);
+		});
+	}
+
+	/**
+	 * Returns whether changes of the entity can change other entities indexes, because the entity is not indexed itself (so it can only
+	 * be embedded in other indexes) or has {@link ContainedIn} associations.
+	 */
+	protected boolean isContainedInOtherIndexes(Class<?> entityClass) {
+		boolean indexed = false;
+		for (Class<?> c = entityClass; c!=null && c!=Object.class; c = c.getSuperclass()) {
+			if (c.isAnnotationPresent(Indexed.class))
+				indexed = true;
+
+			List<AccessibleObject> members = new ArrayList<>(Arrays.asList(c.getDeclaredFields()));
+			members.addAll(Arrays.asList(c.getDeclaredMethods()));
+			for (AccessibleObject member: members)
+				if (member.isAnnotationPresent(ContainedIn.class))
+					return true;
+		}
+
+		return !indexed;
+	}
+
+	protected static class Entry {
+		protected final Collection<Class<?>> types;
+		protected final long version;
+		protected final long expiresAt;
+		protected final String response;
+
+		protected Entry(Collection<Class<?>> types, long version, long expiresAt, String response) {
+			this.types = types;
+			this.version = version;
+			this.expiresAt = expiresAt;
+			this.response = response;
+		}
+	}
+
+	protected class InvalidatingListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+		PostCommitDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionUpdateEventListener,
+		PostCollectionRemoveEventListener {
+
+		@Override
+		public void onPostInsert(PostInsertEvent event) {
+			invalidate(event.getPersister());
+		}
+
+		@Override
+		public void onPostUpdate(PostUpdateEvent event) {
+			invalidate(event.getPersister());
+		}
+
+		@Override
+		public void onPostDelete(PostDeleteEvent event) {
+			invalidate(event.getPersister());
+		}
+
+		@Override
+		public void onPostInsertCommitFailed(PostInsertEvent event) {
+		}
+
+		@Override
+		public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+		}
+
+		@Override
+		public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+		}
+
+		@Override
+		public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+			invalidateAfterCommit(event);
+		}
+
+		@Override
+		public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+			invalidateAfterCommit(event);
+		}
+
+		@Override
+		public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+			invalidateAfterCommit(event);
+		}
+
+		// deprecated, but still abstract in Hibernate 5.4
+		@SuppressWarnings("deprecation")
+		@Override
+		public boolean requiresPostCommitHanding(EntityPersister persister) {
+			return true;
+		}
+	}
+
+}
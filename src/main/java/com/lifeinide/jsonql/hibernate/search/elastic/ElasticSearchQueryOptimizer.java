@@ -0,0 +1,419 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * Rewrites json query produced from {@link com.lifeinide.jsonql.elasticql.node.EQLRoot} into the equivalent, but cheaper to parse and
+ * execute query. The builder produces a lot of nested bools for {@code and()}/{@code or()} conditions and list filters, and this
+ * optimizer:
+ *
+ * <ul>
+ * <li>hoists clauses of nested non-scoring bools into their parent bool</li>
+ * <li>flattens bools with a single clause</li>
+ * <li>merges ranges on the same field</li>
+ * <li>collapses {@code term} disjunctions on the same field into a single {@code terms} query</li>
+ * <li>drops duplicate clauses</li>
+ * </ul>
+ *
+ * Only rewrites not changing matched documents are applied. Rewrites which could change scores are applied only in the filter context,
+ * which is {@code filter} and {@code must_not} clauses and everything nested in them.
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchQueryOptimizer {
+
+	public static final String BOOL = "bool";
+	public static final String MUST = "must";
+	public static final String FILTER = "filter";
+	public static final String SHOULD = "should";
+	public static final String MUST_NOT = "must_not";
+	public static final String TERM = "term";
+	public static final String TERMS = "terms";
+	public static final String RANGE = "range";
+
+	protected static final List<String> OCCURRENCES = Arrays.asList(MUST, FILTER, SHOULD, MUST_NOT);
+	protected static final Set<String> RANGE_BOUNDS = new HashSet<>(Arrays.asList("gt", "gte", "lt", "lte"));
+	protected static final Set<String> RANGE_OPTIONS = new HashSet<>(Arrays.asList("format", "time_zone"));
+	protected static final Map.Entry<String, JsonPrimitive> BOUND_CONFLICT = new AbstractMap.SimpleImmutableEntry<>(null, null);
+
+	/**
+	 * Optimizes {@code query} and {@code post_filter} of the search request json, modifying it in place.
+	 */
+	@Nonnull public JsonObject optimize(@Nonnull JsonObject request) {
+		JsonElement query = request.get("query");
+		if (query!=null && query.isJsonObject())
+			request.add("query", optimizeQuery(query.getAsJsonObject(), false));
+
+		JsonElement postFilter = request.get("post_filter");
+		if (postFilter!=null && postFilter.isJsonObject())
+			request.add("post_filter", optimizeQuery(postFilter.getAsJsonObject(), true));
+
+		return request;
+	}
+
+	/**
+	 * Returns optimized query. Only bool queries are rewritten, other queries are returned as they are.
+	 */
+	@Nonnull protected JsonObject optimizeQuery(@Nonnull JsonObject query, boolean filterContext) {
+		JsonObject bool = boolOf(query);
+		return bool!=null ? optimizeBool(query, bool, filterContext) : query;
+	}
+
+	@Nonnull protected JsonObject optimizeBool(JsonObject query, JsonObject bool, boolean filterContext) {
+		Map<String, List<JsonObject>> clauses = new LinkedHashMap<>();
+		for (String occurrence: OCCURRENCES) {
+			boolean clauseFilterContext = filterContext || FILTER.equals(occurrence) || MUST_NOT.equals(occurrence);
+			List<JsonObject> occurrenceClauses = new ArrayList<>();
+			for (JsonObject clause: clausesOf(bool, occurrence))
+				occurrenceClauses.add(optimizeQuery(clause, clauseFilterContext));
+			clauses.put(occurrence, occurrenceClauses);
+		}
+
+		boolean plainBool = isPlainBool(bool);
+
+		// hoist non-scoring nested bools to this bool
+		hoist(clauses, FILTER, plainBool);
+		if (filterContext)
+			hoist(clauses, MUST, plainBool);
+
+		// drop empty bools matching all documents from conjunctive non-scoring clauses, unless they keep should clauses optional
+		if (clauses.get(SHOULD).isEmpty() || bool.has("minimum_should_match")) {
+			clauses.get(FILTER).removeIf(this::isEmptyBool);
+			if (filterContext)
+				clauses.get(MUST).removeIf(this::isEmptyBool);
+		}
+
+		// drop duplicates of non-scoring clauses
+		dedup(clauses.get(FILTER));
+		dedup(clauses.get(MUST_NOT));
+		if (filterContext) {
+			dedup(clauses.get(MUST));
+			dedup(clauses.get(SHOULD));
+		}
+
+		// collapse terms: disjunction of should terms or the conjunction of must_not terms on the same field
+		collapseTerms(clauses.get(MUST_NOT));
+		if (filterContext && plainBool)
+			collapseTerms(clauses.get(SHOULD));
+
+		// merge ranges of conjunctive non-scoring clauses
+		mergeRanges(clauses.get(FILTER));
+		if (filterContext)
+			mergeRanges(clauses.get(MUST));
+
+		// single clause bool can be replaced with the clause itself
+		if (plainBool) {
+			JsonObject single = singleClause(clauses, filterContext);
+			if (single!=null)
+				return single;
+		}
+
+		for (Map.Entry<String, List<JsonObject>> entry: clauses.entrySet()) {
+			if (entry.getValue().isEmpty())
+				bool.remove(entry.getKey());
+			else {
+				JsonArray array = new JsonArray();
+				entry.getValue().forEach(array::add);
+				bool.add(entry.getKey(), array);
+			}
+		}
+
+		return query;
+	}
+
+	/**
+	 * Moves clauses of nested plain bools from given conjunctive non-scoring occurrence to this bool. Nested bools with should clauses
+	 * are not hoisted, because should semantics depends on the bool they are in. Nested bools without must or filter clauses are not
+	 * hoisted to the bool with should clauses, because it could make these should clauses required.
+	 */
+	protected void hoist(Map<String, List<JsonObject>> clauses, String occurrence, boolean plainBool) {
+		List<JsonObject> occurrenceClauses = clauses.get(occurrence);
+		boolean hasShould = !clauses.get(SHOULD).isEmpty();
+
+		for (ListIterator<JsonObject> it = occurrenceClauses.listIterator(); it.hasNext(); ) {
+			JsonObject nested = boolOf(it.next());
+			if (nested==null || !isPlainBool(nested) || !clausesOf(nested, SHOULD).isEmpty())
+				continue;
+
+			List<JsonObject> conjunctive = new ArrayList<>(clausesOf(nested, MUST));
+			conjunctive.addAll(clausesOf(nested, FILTER));
+			List<JsonObject> negative = clausesOf(nested, MUST_NOT);
+			if (conjunctive.isEmpty() && negative.isEmpty())
+				continue; // empty bool, dropped later if possible
+			if (conjunctive.isEmpty() && (hasShould || !plainBool))
+				continue;
+
+			it.remove();
+			conjunctive.forEach(it::add);
+			clauses.get(MUST_NOT).addAll(negative);
+		}
+	}
+
+	protected void dedup(List<JsonObject> clauses) {
+		if (clauses.size() > 1) {
+			Set<JsonObject> unique = new LinkedHashSet<>(clauses);
+			if (unique.size()!=clauses.size()) {
+				clauses.clear();
+				clauses.addAll(unique);
+			}
+		}
+	}
+
+	/**
+	 * Replaces all single value {@code term} queries on the same field with a single {@code terms} query.
+	 */
+	protected void collapseTerms(List<JsonObject> clauses) {
+		if (clauses.size() < 2)
+			return;
+
+		Map<String, JsonArray> valuesByField = new LinkedHashMap<>();
+		Map<String, Integer> countByField = new HashMap<>();
+		for (JsonObject clause: clauses) {
+			String field = termField(clause);
+			if (field!=null) {
+				valuesByField.computeIfAbsent(field, it -> new JsonArray()).add(termValue(clause, field));
+				countByField.merge(field, 1, Integer::sum);
+			}
+		}
+
+		if (countByField.values().stream().noneMatch(count -> count > 1))
+			return;
+
+		Set<String> collapsedFields = new HashSet<>();
+		for (ListIterator<JsonObject> it = clauses.listIterator(); it.hasNext(); ) {
+			String field = termField(it.next());
+			if (field!=null && countByField.get(field) > 1) {
+				if (collapsedFields.add(field)) {
+					JsonObject terms = new JsonObject();
+					terms.add(field, valuesByField.get(field));
+					JsonObject query = new JsonObject();
+					query.add(TERMS, terms);
+					it.set(query);
+				} else
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the field name of {@code {"term": {"field": value}}} or {@code {"term": {"field": {"value": value}}}} query, or
+	 * {@code null} for any other query.
+	 */
+	protected String termField(JsonObject clause) {
+		if (clause.size()!=1 || !clause.has(TERM) || !clause.get(TERM).isJsonObject())
+			return null;
+
+		JsonObject term = clause.getAsJsonObject(TERM);
+		if (term.size()!=1)
+			return null;
+
+		Map.Entry<String, JsonElement> entry = term.entrySet().iterator().next();
+		JsonElement value = entry.getValue();
+		if (value.isJsonPrimitive())
+			return entry.getKey();
+		if (value.isJsonObject() && value.getAsJsonObject().size()==1 && value.getAsJsonObject().has("value")
+				&& value.getAsJsonObject().get("value").isJsonPrimitive())
+			return entry.getKey();
+
+		return null;
+	}
+
+	protected JsonElement termValue(JsonObject clause, String field) {
+		JsonElement value = clause.getAsJsonObject(TERM).get(field);
+		return value.isJsonObject() ? value.getAsJsonObject().get("value") : value;
+	}
+
+	/**
+	 * Merges all {@code range} queries on the same field into a single one, if their bounds can be merged.
+	 */
+	protected void mergeRanges(List<JsonObject> clauses) {
+		if (clauses.size() < 2)
+			return;
+
+		Map<String, Integer> firstRangeIndex = new HashMap<>();
+		for (int i = 0; i < clauses.size(); i++) {
+			String field = rangeField(clauses.get(i));
+			if (field==null)
+				continue;
+
+			Integer first = firstRangeIndex.get(field);
+			if (first==null) {
+				firstRangeIndex.put(field, i);
+				continue;
+			}
+
+			JsonObject merged = mergeRange(clauses.get(first).getAsJsonObject(RANGE).getAsJsonObject(field),
+				clauses.get(i).getAsJsonObject(RANGE).getAsJsonObject(field));
+			if (merged!=null) {
+				JsonObject range = new JsonObject();
+				range.add(field, merged);
+				JsonObject query = new JsonObject();
+				query.add(RANGE, range);
+				clauses.set(first, query);
+				clauses.remove(i--);
+			}
+		}
+	}
+
+	/**
+	 * Returns the field name of {@code {"range": {"field": {...}}}} query having only bounds and format options, or {@code null} for
+	 * any other query.
+	 */
+	protected String rangeField(JsonObject clause) {
+		if (clause.size()!=1 || !clause.has(RANGE) || !clause.get(RANGE).isJsonObject())
+			return null;
+
+		JsonObject range = clause.getAsJsonObject(RANGE);
+		if (range.size()!=1)
+			return null;
+
+		Map.Entry<String, JsonElement> entry = range.entrySet().iterator().next();
+		if (!entry.getValue().isJsonObject())
+			return null;
+
+		for (Map.Entry<String, JsonElement> param: entry.getValue().getAsJsonObject().entrySet())
+			if (!RANGE_BOUNDS.contains(param.getKey()) && !RANGE_OPTIONS.contains(param.getKey()))
+				return null;
+			else if (RANGE_BOUNDS.contains(param.getKey()) && !param.getValue().isJsonPrimitive() && !param.getValue().isJsonNull())
+				return null;
+
+		return entry.getKey();
+	}
+
+	/**
+	 * Returns range having the stricter bounds of both ranges, or {@code null} if bounds can't be compared.
+	 */
+	protected JsonObject mergeRange(JsonObject r1, JsonObject r2) {
+		for (String option: RANGE_OPTIONS)
+			if (!Objects.equals(r1.get(option), r2.get(option)))
+				return null;
+
+		JsonObject merged = new JsonObject();
+		for (String option: RANGE_OPTIONS)
+			if (r1.has(option))
+				merged.add(option, r1.get(option));
+
+		return mergeBound(r1, r2, merged, "gt", "gte", 1) && mergeBound(r1, r2, merged, "lt", "lte", -1)
+			? merged
+			: null;
+	}
+
+	/**
+	 * Merges lower or upper bound into the target range. The {@code direction} is {@code 1} for the lower bound, where the greater
+	 * value is stricter, and {@code -1} for the upper bound.
+	 */
+	protected boolean mergeBound(JsonObject r1, JsonObject r2, JsonObject target, String exclusive, String inclusive, int direction) {
+		Map.Entry<String, JsonPrimitive> b1 = bound(r1, exclusive, inclusive);
+		Map.Entry<String, JsonPrimitive> b2 = bound(r2, exclusive, inclusive);
+		if (b1==BOUND_CONFLICT || b2==BOUND_CONFLICT)
+			return false;
+
+		Map.Entry<String, JsonPrimitive> result;
+		if (b1==null)
+			result = b2;
+		else if (b2==null || b1.equals(b2))
+			result = b1;
+		else if (b1.getValue().isNumber() && b2.getValue().isNumber()) {
+			int cmp = b1.getValue().getAsBigDecimal().compareTo(b2.getValue().getAsBigDecimal()) * direction;
+			if (cmp==0)
+				result = exclusive.equals(b1.getKey()) ? b1 : b2;
+			else
+				result = cmp > 0 ? b1 : b2;
+		} else
+			return false;
+
+		if (result!=null)
+			target.add(result.getKey(), result.getValue());
+		return true;
+	}
+
+	/**
+	 * Returns the single bound of the range in given direction, {@code null} if there's no such bound, or {@link #BOUND_CONFLICT} if
+	 * there are both exclusive and inclusive bounds.
+	 */
+	protected Map.Entry<String, JsonPrimitive> bound(JsonObject range, String exclusive, String inclusive) {
+		JsonElement e = range.get(exclusive), i = range.get(inclusive);
+		boolean hasE = e!=null && !e.isJsonNull(), hasI = i!=null && !i.isJsonNull();
+		if (hasE && hasI)
+			return BOUND_CONFLICT;
+		if (hasE)
+			return new AbstractMap.SimpleImmutableEntry<>(exclusive, e.getAsJsonPrimitive());
+		if (hasI)
+			return new AbstractMap.SimpleImmutableEntry<>(inclusive, i.getAsJsonPrimitive());
+		return null;
+	}
+
+	/**
+	 * Returns the only clause of the bool, if it can replace the whole bool.
+	 */
+	protected JsonObject singleClause(Map<String, List<JsonObject>> clauses, boolean filterContext) {
+		int count = 0;
+		for (List<JsonObject> occurrenceClauses: clauses.values())
+			count += occurrenceClauses.size();
+		if (count!=1)
+			return null;
+
+		if (!clauses.get(MUST).isEmpty())
+			return clauses.get(MUST).get(0);
+		if (!clauses.get(SHOULD).isEmpty())
+			return clauses.get(SHOULD).get(0);
+		if (filterContext && !clauses.get(FILTER).isEmpty())
+			return clauses.get(FILTER).get(0);
+
+		return null;
+	}
+
+	/**
+	 * Returns body of {@code {"bool": {...}}} query, or {@code null} for other queries.
+	 */
+	protected JsonObject boolOf(JsonObject query) {
+		if (query.size()==1 && query.has(BOOL) && query.get(BOOL).isJsonObject())
+			return query.getAsJsonObject(BOOL);
+		return null;
+	}
+
+	/**
+	 * Returns whether the bool contains only clauses, without {@code minimum_should_match}, {@code boost} and other options changing
+	 * its semantics.
+	 */
+	protected boolean isPlainBool(JsonObject bool) {
+		for (String key: bool.keySet())
+			if (!OCCURRENCES.contains(key))
+				return false;
+		return true;
+	}
+
+	protected boolean isEmptyBool(JsonObject query) {
+		JsonObject bool = boolOf(query);
+		if (bool==null || !isPlainBool(bool))
+			return false;
+		for (String occurrence: OCCURRENCES)
+			if (!clausesOf(bool, occurrence).isEmpty())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns clauses of given occurrence, which can be serialized either as a single object or as an array.
+	 */
+	protected List<JsonObject> clausesOf(JsonObject bool, String occurrence) {
+		JsonElement element = bool.get(occurrence);
+		if (element==null || element.isJsonNull())
+			return Collections.emptyList();
+		if (element.isJsonObject())
+			return Collections.singletonList(element.getAsJsonObject());
+
+		List<JsonObject> clauses = new ArrayList<>();
+		for (JsonElement clause: element.getAsJsonArray())
+			if (clause.isJsonObject())
+				clauses.add(clause.getAsJsonObject());
+		return clauses;
+	}
+
+}
@@ -0,0 +1,381 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Streaming parser of ElasticSearch {@code _search} response. Instead of materializing the whole response as a json tree it pulls only
+ * these parts we really use ({@code _id}, {@code _type}, {@code _score}, highlights and requested {@code _source} fields) and skips
+ * everything else, what keeps the memory footprint low for big responses. Aggregations, which are small, are read as json.
+ *
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchResponseParser {
+
+	/** {@code _source} fields to be extracted from hits, other fields are skipped **/
+	@Nonnull protected Set<String> sourceFields;
+
+	/** Whether to keep the whole {@code _source} of hits as json **/
+	protected boolean rawSource;
+
+	public ElasticSearchResponseParser() {
+		this(Collections.emptySet());
+	}
+
+	public ElasticSearchResponseParser(@Nonnull Set<String> sourceFields) {
+		this(sourceFields, false);
+	}
+
+	public ElasticSearchResponseParser(@Nonnull Set<String> sourceFields, boolean rawSource) {
+		this.sourceFields = sourceFields;
+		this.rawSource = rawSource;
+	}
+
+	/**
+	 * Parses the whole response from the reader, passing all hits to the consumer.
+	 */
+	@Nonnull public SearchResponse parse(@Nonnull Reader reader, @Nonnull Consumer<Hit> hitConsumer) throws IOException {
+		try (JsonReader jsonReader = new JsonReader(reader)) {
+			return parse(jsonReader, hitConsumer);
+		}
+	}
+
+	/**
+	 * Parses a single search response object starting at the current reader position, passing all hits to the consumer.
+	 */
+	@Nonnull public SearchResponse parse(@Nonnull JsonReader reader, @Nonnull Consumer<Hit> hitConsumer) throws IOException {
+		SearchResponse response = new SearchResponse();
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "took":
+					response.took = reader.nextLong();
+					break;
+				case "timed_out":
+					response.timedOut = reader.nextBoolean();
+					break;
+				case "terminated_early":
+					response.terminatedEarly = reader.nextBoolean();
+					break;
+				case "_shards":
+					parseShards(reader, response);
+					break;
+				case "hits":
+					parseHits(reader, response, hitConsumer);
+					break;
+				case "error":
+					response.error = parseError(reader);
+					break;
+				case "_scroll_id":
+					response.scrollId = reader.nextString();
+					break;
+				case "aggregations":
+					response.aggregations = new JsonParser().parse(reader).getAsJsonObject();
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		return response;
+	}
+
+	protected void parseHits(JsonReader reader, SearchResponse response, Consumer<Hit> hitConsumer) throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "total":
+					response.total = parseTotal(reader);
+					break;
+				case "hits":
+					reader.beginArray();
+					while (reader.hasNext())
+						hitConsumer.accept(parseHit(reader));
+					reader.endArray();
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	protected void parseShards(JsonReader reader, SearchResponse response) throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("failed".equals(reader.nextName()))
+				response.failedShards = reader.nextInt();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+	}
+
+	/**
+	 * Total is a number in ES 5/6 and {@code {"value": number, "relation": "eq"}} object since ES 7.
+	 */
+	protected long parseTotal(JsonReader reader) throws IOException {
+		if (reader.peek()!=JsonToken.BEGIN_OBJECT)
+			return reader.nextLong();
+
+		long total = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("value".equals(reader.nextName()))
+				total = reader.nextLong();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return total;
+	}
+
+	/**
+	 * Error is a plain string in some cases and {@code {"type": "...", "reason": "...", ...}} object in others.
+	 */
+	protected String parseError(JsonReader reader) throws IOException {
+		if (reader.peek()!=JsonToken.BEGIN_OBJECT)
+			return reader.nextString();
+
+		String type = null, reason = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "type":
+					type = reader.nextString();
+					break;
+				case "reason":
+					reason = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return String.format("%s: %s", type, reason);
+	}
+
+	protected Hit parseHit(JsonReader reader) throws IOException {
+		Hit hit = new Hit();
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "_id":
+					hit.id = reader.nextString();
+					break;
+				case "_type":
+					hit.type = reader.nextString();
+					break;
+				case "_score":
+					if (reader.peek()==JsonToken.NULL)
+						reader.nextNull();
+					else
+						hit.score = reader.nextDouble();
+					break;
+				case "highlight":
+					hit.highlights = new ArrayList<>();
+					reader.beginObject();
+					while (reader.hasNext()) {
+						reader.nextName();
+						readStrings(reader, hit.highlights);
+					}
+					reader.endObject();
+					break;
+				case "_source":
+					parseSource(reader, hit);
+					break;
+				case "sort":
+					hit.sortValues = new JsonParser().parse(reader).getAsJsonArray();
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		return hit;
+	}
+
+	protected void parseSource(JsonReader reader, Hit hit) throws IOException {
+		if (rawSource && reader.peek()==JsonToken.BEGIN_OBJECT) {
+			hit.rawSource = new JsonParser().parse(reader).getAsJsonObject();
+			parseSource(hit.rawSource, hit);
+			return;
+		}
+
+		if (sourceFields.isEmpty() || reader.peek()!=JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+
+		hit.source = new HashMap<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (sourceFields.contains(field)) {
+				List<String> values = new ArrayList<>();
+				readStrings(reader, values);
+				hit.source.put(field, values);
+			} else
+				reader.skipValue();
+		}
+		reader.endObject();
+	}
+
+	/**
+	 * Extracts source fields from already parsed {@code _source}.
+	 */
+	protected void parseSource(JsonObject source, Hit hit) {
+		if (sourceFields.isEmpty())
+			return;
+
+		hit.source = new HashMap<>();
+		for (String field: sourceFields) {
+			JsonElement element = source.get(field);
+			if (element!=null) {
+				List<String> values = new ArrayList<>();
+				readStrings(element, values);
+				hit.source.put(field, values);
+			}
+		}
+	}
+
+	protected void readStrings(JsonElement element, List<String> target) {
+		if (element.isJsonArray())
+			element.getAsJsonArray().forEach(it -> readStrings(it, target));
+		else if (element.isJsonPrimitive())
+			target.add(element.getAsString());
+	}
+
+	/**
+	 * Reads primitive value or array of primitive values as strings, skipping all nulls and nested objects.
+	 */
+	protected void readStrings(JsonReader reader, List<String> target) throws IOException {
+		switch (reader.peek()) {
+			case BEGIN_ARRAY:
+				reader.beginArray();
+				while (reader.hasNext())
+					readStrings(reader, target);
+				reader.endArray();
+				break;
+			case STRING:
+			case NUMBER:
+				target.add(reader.nextString());
+				break;
+			case BOOLEAN:
+				target.add(String.valueOf(reader.nextBoolean()));
+				break;
+			default:
+				reader.skipValue();
+		}
+	}
+
+	/**
+	 * Search response data other than hits.
+	 */
+	public static class SearchResponse {
+		protected long took;
+		protected boolean timedOut;
+		protected boolean terminatedEarly;
+		protected int failedShards;
+		protected long total;
+		@Nullable protected String error;
+		@Nullable protected String scrollId;
+		@Nullable protected JsonObject aggregations;
+
+		public long getTook() {
+			return took;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		public boolean isTerminatedEarly() {
+			return terminatedEarly;
+		}
+
+		public int getFailedShards() {
+			return failedShards;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		/** The error returned instead of results, what happens for single responses of {@code _msearch} **/
+		@Nullable public String getError() {
+			return error;
+		}
+
+		/** Scroll id, if the search was executed with scroll **/
+		@Nullable public String getScrollId() {
+			return scrollId;
+		}
+
+		/** Aggregations json, if the search requested aggregations **/
+		@Nullable public JsonObject getAggregations() {
+			return aggregations;
+		}
+	}
+
+	/**
+	 * Single search hit.
+	 */
+	public static class Hit {
+		protected String id;
+		protected String type;
+		protected double score;
+		@Nullable protected List<String> highlights;
+		@Nullable protected Map<String, List<String>> source;
+		@Nullable protected JsonArray sortValues;
+		@Nullable protected JsonObject rawSource;
+
+		public String getId() {
+			return id;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		/** Highlighted fragments or {@code null} if there was no highlight for the hit **/
+		@Nullable public List<String> getHighlights() {
+			return highlights;
+		}
+
+		/** Requested {@code _source} field values or {@code null} if no source was returned **/
+		@Nullable public Map<String, List<String>> getSource() {
+			return source;
+		}
+
+		/** Sort values of the hit or {@code null} if the search was not sorted **/
+		@Nullable public JsonArray getSortValues() {
+			return sortValues;
+		}
+
+		/** The whole {@code _source} json, available only if requested from the parser **/
+		@Nullable public JsonObject getRawSource() {
+			return rawSource;
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonElement;
+import com.google.gson.annotations.SerializedName;
+import com.lifeinide.jsonql.elasticql.node.component.EQLComponent;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * ES {@code terms} query component, serialized by {@link HibernateSearchElasticFilterQueryBuilder#EQL_BUILDER} like other
+ * {@link EQLComponent}-s. The field value is either the array of terms, or the terms lookup object.
+ *
+ * @see ElasticSearchTermsLookup
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchTermsComponent implements EQLComponent {
+
+	@SerializedName("terms")
+	protected Map<String, JsonElement> terms;
+
+	@Nonnull public static ElasticSearchTermsComponent of(@Nonnull String field, @Nonnull JsonElement terms) {
+		ElasticSearchTermsComponent component = new ElasticSearchTermsComponent();
+		component.terms = Collections.singletonMap(field, terms);
+		return component;
+	}
+
+	@Nonnull public Map<String, JsonElement> getTerms() {
+		return terms;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.RestClient;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Settings of ES <a href="https://www.elastic.co/guide/en/elasticsearch/reference/5.6/query-dsl-terms-query.html#query-dsl-terms-lookup">
+ * terms lookup</a> for {@link HibernateSearchElasticFilterQueryBuilder#addTerms(String, Collection)} filters, which can be shared among
+ * builders. When the number of terms reaches the {@link #getThreshold() threshold}, the terms are stored as a document in the lookup
+ * index instead of being sent with each query, and the query only refers to this document. The document id is the hash of its terms,
+ * so that the same set of terms is stored once and ES can cache the lookup.
+ * <p>
+ * The lookup index is created by ES on the first write, unless the automatic index creation is disabled. It's best to create it
+ * upfront with the indexing of terms disabled, because ES reads them only from the {@code _source}:
+ *
+ * <pre>{@code
+ * PUT /terms-lookup
+ * {"mappings": {"doc": {"properties": {"terms": {"type": "object", "enabled": false}}}}}
+ * }</pre>
+ * </p>
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withTermsLookup(ElasticSearchTermsLookup)
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchTermsLookup {
+
+	public static final String DEFAULT_TYPE = "doc";
+	public static final int DEFAULT_THRESHOLD = 1000;
+	public static final int MAX_STORED_IDS = 1000;
+	public static final String PATH = "terms";
+
+	protected final String index;
+	protected String type = DEFAULT_TYPE;
+	protected int threshold = DEFAULT_THRESHOLD;
+
+	/** Ids of documents already stored by this instance, not to store them again **/
+	protected final Set<String> storedIds = Collections.newSetFromMap(Collections.synchronizedMap(
+		new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_STORED_IDS;
+			}
+		}));
+
+	public ElasticSearchTermsLookup(@Nonnull String index) {
+		this.index = index;
+	}
+
+	@Nonnull public String getIndex() {
+		return index;
+	}
+
+	@Nonnull public String getType() {
+		return type;
+	}
+
+	/**
+	 * Sets the type of lookup documents, {@link #DEFAULT_TYPE} by default.
+	 */
+	@Nonnull public ElasticSearchTermsLookup withType(@Nonnull String type) {
+		this.type = type;
+		return this;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the minimum number of terms for which the lookup is used, {@link #DEFAULT_THRESHOLD} by default.
+	 */
+	@Nonnull public ElasticSearchTermsLookup withThreshold(int threshold) {
+		this.threshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Stores given terms in the lookup index, unless they are already stored, and returns the terms lookup object to be used in the
+	 * {@code terms} query instead of these terms.
+	 */
+	@Nonnull public JsonObject lookup(@Nonnull RestClient restClient, @Nonnull JsonArray terms) {
+		JsonArray sorted = sort(terms);
+		String id = hash(sorted.toString());
+
+		if (!storedIds.contains(id)) {
+			JsonObject document = new JsonObject();
+			document.add(PATH, sorted);
+			try {
+				restClient.performRequest("PUT", String.format("/%s/%s/%s", index, type, id), Collections.emptyMap(),
+					new NStringEntity(document.toString(), ContentType.APPLICATION_JSON));
+			} catch (IOException e) {
+				throw new RuntimeException("Error storing terms lookup document with ES low level client", e);
+			}
+			storedIds.add(id);
+		}
+
+		JsonObject lookup = new JsonObject();
+		lookup.addProperty("index", index);
+		lookup.addProperty("type", type);
+		lookup.addProperty("id", id);
+		lookup.addProperty("path", PATH);
+		return lookup;
+	}
+
+	/**
+	 * Returns distinct terms in the stable order, so that the same set of terms always gives the same document.
+	 */
+	protected JsonArray sort(JsonArray terms) {
+		Set<JsonElement> distinct = new TreeSet<>(Comparator.comparing(JsonElement::toString));
+		terms.forEach(distinct::add);
+
+		JsonArray sorted = new JsonArray(distinct.size());
+		distinct.forEach(sorted::add);
+		return sorted;
+	}
+
+	protected String hash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
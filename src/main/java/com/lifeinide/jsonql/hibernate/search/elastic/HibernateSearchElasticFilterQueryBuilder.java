@@ -1,9 +1,12 @@
 package com.lifeinide.jsonql.hibernate.search.elastic;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
 import com.lifeinide.jsonql.core.dto.BasePageableRequest;
 import com.lifeinide.jsonql.core.dto.Page;
 import com.lifeinide.jsonql.core.enums.QueryConjunction;
@@ -12,6 +15,7 @@ import com.lifeinide.jsonql.core.intr.*;
 import com.lifeinide.jsonql.elasticql.EQLBuilder;
 import com.lifeinide.jsonql.elasticql.enums.EQLSortOrder;
 import com.lifeinide.jsonql.elasticql.node.EQLHighlight;
+import com.lifeinide.jsonql.elasticql.node.EQLRoot;
 import com.lifeinide.jsonql.elasticql.node.EQLSort;
 import com.lifeinide.jsonql.elasticql.node.component.*;
 import com.lifeinide.jsonql.elasticql.node.query.*;
@@ -22,18 +26,25 @@ import com.lifeinide.jsonql.hibernate.search.HibernateSearchFilterQueryBuilder;
 import com.lifeinide.jsonql.hibernate.search.bridge.BaseDomainFieldBridge;
 import com.lifeinide.jsonql.hibernate.search.bridge.BigDecimalRangeBridge;
 import com.lifeinide.jsonql.hibernate.search.elastic.bridge.BaseElasticDomainFieldBridge;
+import com.lifeinide.jsonql.hibernate.search.elastic.bridge.BaseElasticNumericDomainFieldBridge;
 import com.lifeinide.jsonql.hibernate.search.elastic.bridge.ElasticBigDecimalRangeBridge;
+import com.lifeinide.jsonql.hibernate.search.elastic.bridge.ElasticScaledBigDecimalBridge;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryInstrumentation;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryMetrics;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryPhase;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.EntityLoader;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.HydrationMode;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.MultiLoadEntityLoader;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.FieldType;
+import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.hibernate.search.SearchFactory;
 import org.hibernate.search.annotations.Analyze;
 import org.hibernate.search.bridge.FieldBridge;
-import org.hibernate.search.bridge.TwoWayFieldBridge;
+import org.hibernate.search.bridge.util.impl.BridgeAdaptorUtils;
 import org.hibernate.search.elasticsearch.impl.ElasticsearchJsonQueryDescriptor;
 import org.hibernate.search.elasticsearch.indexes.ElasticsearchIndexFamily;
 import org.hibernate.search.elasticsearch.indexes.ElasticsearchIndexFamilyType;
@@ -49,14 +60,36 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.metamodel.EntityType;
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.Temporal;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 /**
@@ -103,12 +136,21 @@ import java.util.stream.Stream;
  * <h3>Field bridge for {@link BigDecimal}</h3>
  *
  * Use {@link ElasticBigDecimalRangeBridge} in the same way as {@link BigDecimalRangeBridge} is used in
- * {@link HibernateSearchFilterQueryBuilder} example.
+ * {@link HibernateSearchFilterQueryBuilder} example. For amounts filtered by ranges or used for sorting prefer
+ * {@link ElasticScaledBigDecimalBridge}, which stores values as numeric {@code long} with the fixed scale. The filter values for such
+ * fields are converted to scaled longs by this query builder:
+ *
+ * <pre>{@code
+ * @Field(bridge = @FieldBridge(impl = ElasticScaledBigDecimalBridge.class))
+ * protected BigDecimal amount;
+ * }</pre>
  *
  * <h3>Field bridge for entities</h3>
  *
  * Use {@link BaseElasticDomainFieldBridge} in the same way as {@link BaseDomainFieldBridge} is used in
- * {@link HibernateSearchFilterQueryBuilder} example.
+ * {@link HibernateSearchFilterQueryBuilder} example. For entities with numeric ids {@link BaseElasticNumericDomainFieldBridge} can be
+ * used instead, to store ids as numbers. To filter by large sets of entities use {@link #addTerms(String, Collection)}, which sends a
+ * single {@code terms} query, optionally using {@link ElasticSearchTermsLookup}.
  *
  * <h3>How to make a field to be of the "keyword" type</h3>
  *
@@ -128,7 +170,15 @@ import java.util.stream.Stream;
  * <h2>Highlighting support</h2>
  *
  * This query builder supports search results highlighting with ElasticSearch low level client. For more info please take a look at
- * {@link #highlight(Pageable, Sortable)} and other methods from hightlighting section.
+ * {@link #highlight(Pageable, Sortable)} and other methods from hightlighting section. Highlighting can be tuned with
+ * {@link ElasticSearchHighlightOptions}. Note, that {@link ElasticSearchHighlightOptions.HighlighterType#FVH} highlighter requires term
+ * vectors in all searchable fields, and {@link ElasticSearchHighlightOptions.HighlighterType#UNIFIED} benefits from them:
+ *
+ * <pre>{@code
+ * @Field(name = HibernateSearch.FIELD_TEXT, termVector = TermVector.WITH_POSITION_OFFSETS)
+ * @Analyzer(definition = "standard")
+ * protected String myfield;
+ * }</pre>
  *
  * <h2>Example json with full text search and filters</h2>
  *
@@ -216,7 +266,38 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	protected HibernateSearchElasticQueryBuilderContext<E> context;
 	protected Map<String, FieldSearchStrategy> searchableFields;
 	protected boolean global = false; // indicates global search instead of concrete entity type search
+	protected boolean fullText = false; // indicates full text query, for which ES returns highlights
 	protected int maxHighlightLength = MAX_HIGHLIGHT_LENGTH;
+	protected ElasticSearchHighlightOptions highlightOptions = null;
+	protected SearchableEntityRegistry entityRegistry; // lazily obtained in entityRegistry()
+	protected String indexName; // lazily resolved in resolveIndexName()
+	protected Set<Class<?>> globalSearchClasses = null; // entity classes the global search is limited to
+	protected Boolean ignoreUnavailable = null; // by default missing indexes are ignored only for the global search
+	protected Executor asyncExecutor = ForkJoinPool.commonPool();
+	protected boolean cursorPaging = false; // indicates search_after paging
+	protected String cursorTiebreaker; // the field to sort by to make the cursor paging order total
+	protected JsonArray searchAfter; // sort values of the last hit from the previous page for cursor paging
+	protected ChronoUnit dateRangeRounding; // if not null, date range bounds are rounded to this unit
+	protected ElasticSearchTermsLookup termsLookup; // if not null, large terms filters are sent as terms lookups
+	protected boolean requestCache = false; // whether to request the shard request cache for cacheable queries
+	protected boolean requestCacheable = true; // false if the query contains filters making it not worth caching
+	protected Set<String> sourceFields; // explicitly requested _source fields
+	protected EntityLoader entityLoader = new MultiLoadEntityLoader();
+	protected HydrationMode hydrationMode = HydrationMode.EAGER;
+	protected Class<?> sourceProjection; // the class to map hits _source to
+	protected JsonElement sourceFilter; // _source filter for the query, or null for the full _source
+	protected ElasticSearchQueryOptimizer queryOptimizer = new ElasticSearchQueryOptimizer();
+	protected ElasticSearchQueryCache queryCache;
+	protected Map<String, JsonObject> facets = new LinkedHashMap<>(); // aggregations by facet name
+	protected Map<String, List<EQLBool>> facetFilters = new LinkedHashMap<>(); // post filters by facet name
+	protected QueryInstrumentation instrumentation = QueryInstrumentation.NONE;
+	protected long slowQueryThreshold = -1; // in millis, negative when disabled
+	protected long constructorNanos = 0; // time of building the query in the constructor, reported with the first execution
+	protected final ThreadLocal<QueryMetrics> listMetrics = new ThreadLocal<>(); // metrics of list() executed in the current thread
+	protected Duration timeout; // if not null, the server-side search timeout
+	protected Integer terminateAfter; // if not null, the maximum number of documents to collect per shard
+	protected Duration deadline; // if not null, the client-side deadline of each ES request
+	protected ElasticSearchCancellation cancellation;
 
 	/**
 	 * Builds a query builder for concrete entity class with default search fields.
@@ -230,38 +311,32 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	 */
 	public HibernateSearchElasticFilterQueryBuilder(@Nonnull EntityManager entityManager, @Nonnull Class<E> entityClass,
 													@Nullable String q, @Nullable Map<String, FieldSearchStrategy> fields) {
+		long start = System.nanoTime();
 		if (GLOBAL_SEARCH_CLASS.equals(entityClass))
 			global = true;
 
 		HibernateSearch hibernateSearch = new HibernateSearch(entityManager);
 		context = new HibernateSearchElasticQueryBuilderContext<>(q, entityClass, hibernateSearch);
 
-		boolean fieldFound = false;
-		this.searchableFields = fields!=null ? fields : new HashMap<>();
+		this.searchableFields = existingSearchFields(entityClass, fields!=null ? fields : new HashMap<>());
 
 		if ("*".equals(q)) {
 			context.getEqlBool().withMust(EQLMatchAllComponent.of());
+			constructorNanos = System.nanoTime() - start;
 			return;
 		}
 
+		if (q!=null) {
+			if (searchableFields.isEmpty())
+				throw new SearchException(String.format("No fulltext fields found for: %s", entityClass.getSimpleName()));
 
-		if (fields!=null && q!=null) {
 			EQLBool bool = EQLBool.of();
-			for (Map.Entry<String, FieldSearchStrategy> entry : fields.entrySet()) {
-				try {
-					bool.withShould(createFieldQuery(entry.getValue(), entry.getKey(), q));
-					fieldFound = true;
-				} catch (Exception e) {
-					// silently, this means that some of our full text fields don't exists in the entity
-				}
-			}
-
-			if (fieldFound)
-				context.getEqlBool().withMust(EQLBoolComponent.of(bool));
+			searchableFields.forEach((field, strategy) -> bool.withShould(createFieldQuery(strategy, field, q)));
+			context.getEqlBool().withMust(EQLBoolComponent.of(bool));
+			fullText = true;
 		}
 
-		if (!fieldFound && q!=null)
-			throw new SearchException(String.format("No fulltext fields found for: %s", entityClass.getSimpleName()));
+		constructorNanos = System.nanoTime() - start;
 	}
 
 	/**
@@ -290,13 +365,28 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	@Override
 	public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> add(@Nonnull String field, DateRangeQueryFilter filter) {
 		if (filter!=null)
-			addRangeQuery(field, filter.calculateFrom(), filter.calculateTo(), false);
+			addDateRangeQuery(field, filter.calculateFrom(), filter.calculateTo());
 		return this;
 	}
 
+	/**
+	 * Adds the range query for date bounds, rounded to {@link #dateRangeRounding} unit if set.
+	 */
+	protected void addDateRangeQuery(String field, Object from, Object to) {
+		if (dateRangeRounding==null && (!(from==null || from instanceof LocalDate) || !(to==null || to instanceof LocalDate)))
+			requestCacheable = false; // exact instants make each query different
+		addRangeQuery(field, roundDateRangeBound(from, false), roundDateRangeBound(to, true), false);
+	}
+
 	@Nonnull
 	@Override
 	public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> add(@Nonnull String field, EntityQueryFilter<?> filter) {
+		if (filter!=null && filter.getValue()!=null) {
+			BaseElasticNumericDomainFieldBridge<?> domainBridge = numericDomainFieldBridge(field);
+			if (domainBridge!=null)
+				return add(field, SingleValueQueryFilter.of(filter.getCondition(), domainBridge.toId(filter.getValue())));
+		}
+
 		return add(field, (SingleValueQueryFilter<?>) filter);
 	}
 
@@ -304,26 +394,23 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	@Override
 	public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> add(@Nonnull String field, ListQueryFilter<? extends QueryFilter> filter) {
 		if (filter!=null && !filter.getFilters().isEmpty()) {
-			HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> internalBuilder =
-				new HibernateSearchElasticFilterQueryBuilder<>(
-					context.getHibernateSearch().entityManager(), context.getEntityClass(), context.getQuery());
-
-			filter.getFilters().forEach(f -> f.accept(internalBuilder, field));
+			// collect list filters into a separate bool of this builder context, without building a new internal query builder
+			EQLBool listBool = context.doWithNewFilterBool(() -> filter.getFilters().forEach(f -> f.accept(this, field)));
 
 			switch (filter.getConjunction()) {
 
-				// for "and" query we can just take the same bool as produced from the internal builder and use it in this builder filters
+				// for "and" query we can just take the same bool as produced from the list filters and use it in this builder filters
 				case and:
-					context.getEqlFilterBool().withMust(EQLBoolComponent.of(internalBuilder.context().getEqlFilterBool()));
+					context.getEqlFilterBool().withMust(EQLBoolComponent.of(listBool));
 					break;
 
 				// for "or" query we can need to convert "must" to "should", and "must_not"
 				case or:
-					internalBuilder.context().getEqlFilterBool().getShould().forEach(component ->
+					listBool.getShould().forEach(component ->
 						context.getEqlFilterBool().withShould(component));
-					internalBuilder.context().getEqlFilterBool().getMust().forEach(component ->
+					listBool.getMust().forEach(component ->
 						context.getEqlFilterBool().withShould(component));
-					internalBuilder.context().getEqlFilterBool().getMustNot().forEach(component ->
+					listBool.getMustNot().forEach(component ->
 						context.getEqlFilterBool().withShould(EQLBoolComponent.of(EQLBool.of().withMustNot(component))));
 					break;
 
@@ -339,7 +426,12 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	@Nonnull
 	@Override
 	public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> add(@Nonnull String field, SingleValueQueryFilter<?> filter) {
-		if (filter!=null)
+		if (filter!=null) {
+			ElasticScaledBigDecimalBridge scaledBridge = scaledBigDecimalBridge(field, filter.getValue());
+			if (scaledBridge!=null) {
+				addScaledValueQuery(field, filter, scaledBridge);
+				return this;
+			}
 
 			switch (filter.getCondition()) {
 
@@ -380,6 +472,7 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 						String.format("Condition: %s not supported for HibernateSearchFilterQueryBuilder", filter.getCondition()));
 
 			}
+		}
 
 		return this;
 	}
@@ -387,11 +480,164 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	@Nonnull
 	@Override
 	public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> add(@Nonnull String field, ValueRangeQueryFilter<? extends Number> filter) {
-		if (filter!=null)
-			addRangeQuery(field, filter.getFrom(), filter.getTo(), true);
+		if (filter!=null) {
+			ElasticScaledBigDecimalBridge scaledBridge = scaledBigDecimalBridge(field,
+				filter.getFrom()!=null ? filter.getFrom() : filter.getTo());
+			if (scaledBridge!=null)
+				// the rounded range must not go beyond the requested one
+				addRangeQuery(field,
+					filter.getFrom()!=null ? scaledBridge.toScaledLong(toBigDecimal(filter.getFrom()), RoundingMode.CEILING) : null,
+					filter.getTo()!=null ? scaledBridge.toScaledLong(toBigDecimal(filter.getTo()), RoundingMode.FLOOR) : null,
+					true);
+			else
+				addRangeQuery(field, filter.getFrom(), filter.getTo(), true);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns {@link ElasticScaledBigDecimalBridge} of given field, if the field uses it and the filter value is a number, or
+	 * {@code null} otherwise.
+	 */
+	protected ElasticScaledBigDecimalBridge scaledBigDecimalBridge(String field, Object value) {
+		if (!(value instanceof Number))
+			return null;
+
+		FieldBridge fieldBridge = entityRegistry().getFieldBridge(context.getEntityClass(), field);
+		return fieldBridge!=null
+			? BridgeAdaptorUtils.unwrapAdaptorAndContainer(fieldBridge, ElasticScaledBigDecimalBridge.class)
+			: null;
+	}
+
+	/**
+	 * Adds {@link SingleValueQueryFilter} query for the field stored with {@link ElasticScaledBigDecimalBridge}, converting the value
+	 * to the scaled long. The value having the greater scale than the field is rounded so that the query still matches exactly the
+	 * stored values fulfilling the condition, i.e. {@code gt 1.005} becomes {@code gt 100} for the scale {@code 2}, and {@code eq 1.005}
+	 * matches nothing.
+	 */
+	protected void addScaledValueQuery(String field, SingleValueQueryFilter<?> filter, ElasticScaledBigDecimalBridge scaledBridge) {
+		BigDecimal value = toBigDecimal((Number) filter.getValue());
+		boolean exact = value.stripTrailingZeros().scale() <= scaledBridge.getScale();
+
+		switch (filter.getCondition()) {
+
+			case eq:
+				context.getEqlFilterBool().withMust(exact
+					? EQLTermComponent.of(field, EQLTermQuery.of(scaledBridge.toScaledLong(value, RoundingMode.UNNECESSARY)))
+					: EQLBoolComponent.of(EQLBool.of().withMustNot(EQLMatchAllComponent.of())));
+				break;
+
+			case ne:
+				if (exact)
+					context.getEqlFilterBool().withMustNot(
+						EQLTermComponent.of(field, EQLTermQuery.of(scaledBridge.toScaledLong(value, RoundingMode.UNNECESSARY))));
+				break;
+
+			case gt:
+				context.getEqlFilterBool().withMust(EQLRangeComponent.of(field,
+					EQLRangeQuery.ofGt(scaledBridge.toScaledLong(value, RoundingMode.FLOOR))));
+				break;
+
+			case ge:
+				context.getEqlFilterBool().withMust(EQLRangeComponent.of(field,
+					EQLRangeQuery.ofGte(scaledBridge.toScaledLong(value, RoundingMode.CEILING))));
+				break;
+
+			case lt:
+				context.getEqlFilterBool().withMust(EQLRangeComponent.of(field,
+					EQLRangeQuery.ofLt(scaledBridge.toScaledLong(value, RoundingMode.CEILING))));
+				break;
+
+			case le:
+				context.getEqlFilterBool().withMust(EQLRangeComponent.of(field,
+					EQLRangeQuery.ofLte(scaledBridge.toScaledLong(value, RoundingMode.FLOOR))));
+				break;
+
+			default:
+				throw new IllegalArgumentException(
+					String.format("Condition: %s not supported for numeric value in HibernateSearchFilterQueryBuilder",
+						filter.getCondition()));
+
+		}
+	}
+
+	protected BigDecimal toBigDecimal(Number value) {
+		return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+	}
+
+	/**
+	 * Adds the filter matching any of given values, sent as a single ES {@code terms} query instead of a list of {@code term} queries,
+	 * what is appropriate for filtering by large sets of values, like entity ids. For fields stored with
+	 * {@link BaseElasticNumericDomainFieldBridge} the values can be also the entities themselves. When
+	 * {@link #withTermsLookup(ElasticSearchTermsLookup) terms lookup} is configured and the number of values reaches its threshold, the
+	 * values are stored in the lookup index and the query only refers to them.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> addTerms(@Nonnull String field, @Nonnull Collection<?> values) {
+		JsonArray terms = new JsonArray(values.size());
+		BaseElasticNumericDomainFieldBridge<?> domainBridge = values.isEmpty() ? null : numericDomainFieldBridge(field);
+
+		for (Object value: values) {
+			if (domainBridge!=null)
+				value = domainBridge.toId(value);
+			terms.add(SOURCE_GSON.toJsonTree(value));
+		}
+
+		if (termsLookup!=null && terms.size() >= termsLookup.getThreshold())
+			context.getEqlFilterBool().withMust(ElasticSearchTermsComponent.of(field, termsLookup.lookup(restClient(), terms)));
+		else
+			context.getEqlFilterBool().withMust(ElasticSearchTermsComponent.of(field, terms));
+
+		return this;
+	}
+
+	/**
+	 * Returns {@link BaseElasticNumericDomainFieldBridge} of given field, if the field uses it, or {@code null} otherwise.
+	 */
+	protected BaseElasticNumericDomainFieldBridge<?> numericDomainFieldBridge(String field) {
+		FieldBridge fieldBridge = entityRegistry().getFieldBridge(context.getEntityClass(), field);
+		return fieldBridge!=null
+			? BridgeAdaptorUtils.unwrapAdaptorAndContainer(fieldBridge, BaseElasticNumericDomainFieldBridge.class)
+			: null;
+	}
+
+	/**
+	 * Sets the terms lookup used for large {@link #addTerms(String, Collection)} filters.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withTermsLookup(@Nullable ElasticSearchTermsLookup termsLookup) {
+		this.termsLookup = termsLookup;
 		return this;
 	}
 
+	/**
+	 * Rounds the date range bound to {@link #dateRangeRounding} unit. The lower bound is rounded down and the exclusive upper bound is
+	 * rounded up, so that the range covers the whole first and last unit, like ES {@code /d} date math rounding does. {@link Date} and
+	 * {@link Instant} values are rounded in UTC, and {@link LocalDate} values are left as they are.
+	 */
+	protected Object roundDateRangeBound(Object value, boolean upper) {
+		if (dateRangeRounding==null || value==null || value instanceof LocalDate)
+			return value;
+
+		if (value instanceof Date)
+			return Date.from((Instant) roundDateRangeBound(((Date) value).toInstant(), upper));
+
+		Temporal rounded;
+		if (value instanceof Instant)
+			rounded = ((Instant) value).truncatedTo(dateRangeRounding);
+		else if (value instanceof LocalDateTime)
+			rounded = ((LocalDateTime) value).truncatedTo(dateRangeRounding);
+		else if (value instanceof ZonedDateTime)
+			rounded = ((ZonedDateTime) value).truncatedTo(dateRangeRounding);
+		else if (value instanceof OffsetDateTime)
+			rounded = ((OffsetDateTime) value).truncatedTo(dateRangeRounding);
+		else
+			throw new IllegalArgumentException(String.format("Cannot round date range value: %s", value.getClass().getName()));
+
+		if (upper && !rounded.equals(value))
+			rounded = rounded.plus(1, dateRangeRounding);
+
+		return rounded;
+	}
+
 	protected <T> EQLRangeQuery<T> addRangeQuery(String field, T from, T to, boolean lte) {
 		EQLRangeQuery<T> query = new EQLRangeQuery<>();
 		if (from!=null)
@@ -410,15 +656,43 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	@Nonnull
 	@Override
 	public FullTextQuery build(@Nonnull Pageable pageable, @Nonnull Sortable<?> sortable) {
-		return context.getHibernateSearch().buildQuery(
-			new ElasticsearchJsonQueryDescriptor(EQL_BUILDER.toJson(context.getEqlRoot())), context.getEntityClass());
+		long start = System.nanoTime();
+		JsonObject query = toJson(false);
+		QueryMetrics metrics = listMetrics.get(); // build() is called by list() through execute()
+		recordPhase(metrics, QueryPhase.SERIALIZE, start);
+		if (metrics!=null)
+			metrics.setQuery(query.toString());
+
+		FullTextQuery fullTextQuery = context.getHibernateSearch().buildQuery(
+			new ElasticsearchJsonQueryDescriptor(query), context.getEntityClass());
+		if (timeout!=null)
+			fullTextQuery.limitExecutionTimeTo(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		return fullTextQuery;
 	}
 
 	@Nonnull
 	@SuppressWarnings("unchecked")
 	@Override
 	public P list(Pageable pageable, Sortable<?> sortable) {
-		return (P) execute(pageable, sortable, defaultSortCustomizer(sortable), null);
+		if (queryCache!=null && isListCacheable(pageable!=null ? pageable : BasePageableRequest.ofUnpaged()))
+			return listCached(pageable!=null ? pageable : BasePageableRequest.ofUnpaged(),
+				sortable!=null ? sortable : BasePageableRequest.ofUnpaged());
+
+		QueryMetrics metrics = startMetrics("list");
+		recordBuildPhase(metrics, System.nanoTime());
+		listMetrics.set(metrics);
+		try {
+			long start = System.nanoTime();
+			P page = (P) execute(pageable, sortable, defaultSortCustomizer(sortable), null);
+			recordPhase(metrics, QueryPhase.SEARCH, start);
+			metrics.setTotalHits(page.getCount());
+			metrics.setHitCount(page.getData().size());
+			metrics.addHydratedCount(page.getData().size());
+			return page;
+		} finally {
+			listMetrics.remove();
+			finishMetrics(metrics);
+		}
 	}
 
 	@Nonnull
@@ -452,7 +726,7 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 
 	public static final int MAX_HIGHLIGHT_RESULT_WINDOW_SIZE = 10000;
 
-	protected static Map<Class, SearchableEntityInfo> entityInfoCache = new HashMap<>();
+	protected static final Gson SOURCE_GSON = new Gson();
 
 	/**
 	 * Builds appropriate hightlight result. To be overwritten in subclasses if necessary.
@@ -462,46 +736,71 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 		return (H) new ElasticSearchHighlightedResults<E>(id, type, score, highlight);
 	}
 
+	/**
+	 * Builds the highlight result from the search hit. In case of not full text query (like match_all) there's nothing to highlight,
+	 * and ES returns the beginning of searchable fields instead (see {@code no_match_size} in {@link #buildQuery()}), which is truncated
+	 * to {@link #getMaxHighlightLength()}. If the hit has no highlights, they are built in the same way from the searchable fields
+	 * {@code _source}, if it's present.
+	 */
+	protected H buildHighlight(ElasticSearchResponseParser.Hit hit) {
+		if (hit.getHighlights()!=null && fullText)
+			return buildHighlight(hit.getId(), hit.getType(), hit.getScore(), String.join(" ", hit.getHighlights()));
+
+		StringBuilder highlight = new StringBuilder(Math.min(maxHighlightLength, 256));
+		if (hit.getHighlights()!=null)
+			appendHighlight(highlight, hit.getHighlights());
+		else if (hit.getSource()!=null) {
+			for (String field: searchableFields.keySet()) {
+				List<String> values = hit.getSource().get(field);
+				if (values!=null && !appendHighlight(highlight, values))
+					break;
+			}
+		}
+
+		return buildHighlight(hit.getId(), hit.getType(), hit.getScore(), highlight.toString());
+	}
+
+	/**
+	 * Appends space-separated values to the highlight, but no more than {@link #getMaxHighlightLength()} characters in total. Returns
+	 * {@code false} if the highlight is full.
+	 */
+	protected boolean appendHighlight(StringBuilder highlight, Collection<String> values) {
+		for (String value: values) {
+			if (highlight.length() > 0 && highlight.length() < maxHighlightLength)
+				highlight.append(' ');
+			int remaining = maxHighlightLength - highlight.length();
+			if (remaining <= 0)
+				return false;
+			highlight.append(value, 0, Math.min(value.length(), remaining));
+		}
+
+		return highlight.length() < maxHighlightLength;
+	}
+
+	/**
+	 * Returns the registry of all searchable entities for the current {@link EntityManagerFactory}.
+	 */
+	protected SearchableEntityRegistry entityRegistry() {
+		if (entityRegistry==null)
+			entityRegistry = SearchableEntityRegistry.of(context.getHibernateSearch().entityManager().getEntityManagerFactory(),
+				context.getHibernateSearch().fullTextEntityManager().getSearchFactory());
+		return entityRegistry;
+	}
+
 	/**
 	 * Discovers the entity id to be loaded after search results are fetched, because ids are stored in elastic as "keyword" type
 	 * (String), we need to convert them to appropriate type to fetch the entity from EntityManager.
 	 */
 	protected SearchableEntityInfo loadEntityInfo(Class<?> entityClass) {
-		return entityInfoCache.computeIfAbsent(entityClass, it -> {
-			EntityType entityType = context.getHibernateSearch().entityManager().getMetamodel().entity(entityClass);
-			String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
-
-			// find all subclasses for requested entity
-			List<Class> allClasses = new ArrayList<>();
-			for (Class c: context.getHibernateSearch().fullTextEntityManager().getSearchFactory().getIndexedTypes())
-				if (entityClass.isAssignableFrom(c))
-					allClasses.add(c);
-
-			FieldBridge fieldBridge = context.getHibernateSearch().fullTextEntityManager().getSearchFactory()
-				.getIndexedTypeDescriptor(allClasses.iterator().next()).getIndexedField(idName).getFieldBridge();
-
-			if (fieldBridge instanceof TwoWayFieldBridge) {
-				FieldType fieldType = new FieldType();
-				fieldType.setStored(true);
-				return new SearchableEntityInfo(entityType, idName, id -> {
-					Document document = new Document();
-					document.add(new Field(idName, id, fieldType));
-					return ((TwoWayFieldBridge) fieldBridge).get(idName, document);
-				}, allClasses);
-			} else {
-				logger.warn("Cannot convert id for entity: {} and field bridge: {}. The entity won't be fetched from db.",
-					entityClass.getSimpleName(), fieldBridge);
-				return new SearchableEntityInfo(entityType, idName, null, allClasses);
-			}
-		});
+		return entityRegistry().get(entityClass);
 	}
 
-	protected SearchableEntityInfo loadEntityInfo(String entityClassName) {
-		try {
-			return loadEntityInfo(Class.forName(entityClassName));
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Returns the entity info for ES {@code _type} name or {@code null} if this type is not indexed in the current
+	 * {@link EntityManagerFactory}.
+	 */
+	@Nullable protected SearchableEntityInfo loadEntityInfo(String entityClassName) {
+		return entityRegistry().get(entityClassName);
 	}
 
 	/**
@@ -512,17 +811,279 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 	 * level client and query.
 	 * </p>
 	 */
-	@SuppressWarnings("unchecked")
 	@Nonnull public PH highlight(@Nullable Pageable pageable, @Nullable Sortable<?> sortable) {
+		Pageable finalPageable = pageable!=null ? pageable : BasePageableRequest.ofUnpaged();
+		Sortable<?> finalSortable = sortable!=null ? sortable : BasePageableRequest.ofUnpaged();
+
+		// get the highlighted results
+		return executeRequest("highlight", metrics -> {
+			String indexName = prepare(() -> prepareHighlight(finalPageable, finalSortable), metrics);
+			return buildHighlightPage(finalPageable, loadEntities(searchHighlight(indexName, metrics), metrics));
+		});
+	}
+
+	/** @see #highlight(Pageable, Sortable)  **/
+	@Nonnull public PH highlight() {
+		return highlight(null, null);
+	}
+
+	/** @see #highlight(Pageable, Sortable)  **/
+	@Nonnull public PH highlight(@Nullable Pageable pageable) {
+		return highlight(pageable, null);
+	}
+
+	/** @see #highlight(Pageable, Sortable)  **/
+	@Nonnull public PH highlight(@Nullable Sortable<?> sortable) {
+		return highlight(null, sortable);
+	}
+
+	/** @see #highlight(Pageable, Sortable)  **/
+	@Nonnull public PH highlight(@Nullable PageableSortable<?> ps) {
+		return highlight(ps, ps);
+	}
+
+	/**
+	 * Asynchronous version of {@link #highlight(Pageable, Sortable)}. The ES request is executed with the non-blocking low level client,
+	 * so that no thread is blocked during the ES round trip. The response parsing and fetching entities from the db are executed as a
+	 * separate stage on the given executor.
+	 * <p>
+	 * Note, that the {@link EntityManager} used by this builder is accessed from the executor thread. Because {@link EntityManager} is not
+	 * thread-safe, it must not be used concurrently by the caller until the returned future completes.
+	 * </p>
+	 */
+	@Nonnull public CompletableFuture<PH> highlightAsync(@Nullable Pageable pageable, @Nullable Sortable<?> sortable,
+														 @Nonnull Executor executor) {
+		Pageable finalPageable = pageable!=null ? pageable : BasePageableRequest.ofUnpaged();
+		Sortable<?> finalSortable = sortable!=null ? sortable : BasePageableRequest.ofUnpaged();
+
+		return executeRequestAsync("highlightAsync", (metrics, cancellation) -> {
+			String indexName = prepare(() -> prepareHighlight(finalPageable, finalSortable), metrics);
+			return performSearchAsync(searchEndpoint(indexName), searchParams(), buildQuery(metrics), metrics, cancellation)
+				.thenApplyAsync(unchecked(reader -> parseHighlightResponse(reader, metrics)), executor)
+				.thenApply(resultList -> buildHighlightPage(finalPageable, loadEntities(resultList, metrics)));
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #highlight(Pageable, Sortable)} using {@link #getAsyncExecutor()}.
+	 *
+	 * @see #highlightAsync(Pageable, Sortable, Executor)
+	 */
+	@Nonnull public CompletableFuture<PH> highlightAsync(@Nullable Pageable pageable, @Nullable Sortable<?> sortable) {
+		return highlightAsync(pageable, sortable, asyncExecutor);
+	}
+
+	/** @see #highlightAsync(Pageable, Sortable)  **/
+	@Nonnull public CompletableFuture<PH> highlightAsync() {
+		return highlightAsync(null, null);
+	}
 
-		if (pageable==null)
-			pageable = BasePageableRequest.ofUnpaged();
-		if (sortable==null)
-			sortable = BasePageableRequest.ofUnpaged();
+	/** @see #highlightAsync(Pageable, Sortable)  **/
+	@Nonnull public CompletableFuture<PH> highlightAsync(@Nullable PageableSortable<?> ps) {
+		return highlightAsync(ps, ps);
+	}
+
+	/**
+	 * Counts all results matching this query using ES {@code _count} endpoint. Only the query part is sent to ES, and only the number
+	 * of matching documents is returned, without hits, sorting, highlights or entities. The same indexes and type filter as in
+	 * {@link #highlight(Pageable, Sortable)} are used.
+	 */
+	public long count() {
+		return executeRequest("count", metrics -> {
+			String indexName = prepare(this::prepareCount, metrics);
+			return parseCountResponse(performSearch(String.format("/%s/_count", indexName), countParams(), buildCountQuery(metrics),
+				metrics), metrics);
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #count()}.
+	 */
+	@Nonnull public CompletableFuture<Long> countAsync() {
+		return executeRequestAsync("countAsync", (metrics, cancellation) -> {
+			String indexName = prepare(this::prepareCount, metrics);
+			return performSearchAsync(String.format("/%s/_count", indexName), countParams(), buildCountQuery(metrics), metrics,
+					cancellation)
+				.thenApply(unchecked(reader -> parseCountResponse(reader, metrics)));
+		});
+	}
 
+	/**
+	 * Adds highlight, sorting and paging to the query and resolves the target index name.
+	 */
+	protected String prepareHighlight(@Nonnull Pageable pageable, @Nonnull Sortable<?> sortable) {
 		// add highlight
 		context.getEqlRoot().withHighlight(EQLHighlight.of(searchableFields.keySet()));
+		prepareSourceFilter();
+
+		return prepareSearch(pageable, sortable);
+	}
+
+	/**
+	 * Executes the prepared highlight query in given index and parses the results. When only top hits are to be highlighted, the query
+	 * is split into highlighted and not highlighted parts executed in a single {@code _msearch} request.
+	 *
+	 * @see ElasticSearchHighlightOptions#withTopHits(int)
+	 */
+	protected HighlightResults<H> searchHighlight(String indexName, @Nullable QueryMetrics metrics) throws IOException {
+		JsonObject query = buildQuery(metrics);
+		JsonObject restQuery = splitHighlightQuery(query);
+		if (restQuery==null)
+			return parseHighlightResponse(performSearch(searchEndpoint(indexName), searchParams(), query, metrics), metrics);
+
+		JsonObject header = multiSearchHeader(indexName);
+		splitSearchPreference(header, query);
+
+		JsonArray searches = new JsonArray();
+		searches.add(header);
+		searches.add(query);
+		searches.add(header);
+		searches.add(restQuery);
+
+		return parseSplitHighlightResponse(performMultiSearch(searches, metrics), metrics);
+	}
+
+	/**
+	 * Returns {@code _msearch} header for the query of this builder in given index.
+	 */
+	protected JsonObject multiSearchHeader(String indexName) {
+		JsonObject header = new JsonObject();
+		header.addProperty("index", indexName);
+		if (isIgnoreUnavailable())
+			header.addProperty("ignore_unavailable", true);
+		if (isRequestCacheUsed())
+			header.addProperty("request_cache", true);
+		return header;
+	}
+
+	/**
+	 * Sets the preference of split highlight query searches. The same preference for both searches makes them executed on the same shard
+	 * copies, what keeps the order of hits consistent.
+	 */
+	protected void splitSearchPreference(JsonObject header, JsonObject query) {
+		header.addProperty("preference", Integer.toHexString(query.hashCode()));
+	}
+
+	/**
+	 * Limits the highlight query to {@link ElasticSearchHighlightOptions#getTopHits()} hits, and returns the query for the rest of the
+	 * page without highlight, or {@code null} if all hits should be highlighted.
+	 */
+	@Nullable protected JsonObject splitHighlightQuery(JsonObject query) {
+		if (highlightOptions==null || highlightOptions.getTopHits()==null || !query.has("highlight"))
+			return null;
+
+		int topHits = highlightOptions.getTopHits();
+		int from = query.has("from") ? query.get("from").getAsInt() : 0;
+		int size = query.has("size") ? query.get("size").getAsInt() : 10;
+		if (size <= topHits)
+			return null;
+
+		if (topHits <= 0) {
+			query.remove("highlight");
+			return null;
+		}
+
+		JsonObject restQuery = query.deepCopy();
+		restQuery.remove("highlight");
+		restQuery.remove("aggs");
+		restQuery.addProperty("from", from + topHits);
+		restQuery.addProperty("size", size - topHits);
+		query.addProperty("size", topHits);
+		return restQuery;
+	}
+
+	/**
+	 * Executes {@code _msearch} request with searches given as the list of alternating headers and queries, or takes its response from
+	 * the {@link #queryCache}, and returns the response reader.
+	 */
+	protected Reader performMultiSearch(JsonArray searches, @Nullable QueryMetrics metrics) throws IOException {
+		return performMultiSearch(searches, null, metrics);
+	}
+
+	/**
+	 * Executes {@code _msearch} request with alternating headers and queries from given array. The cached response is evicted on the
+	 * change of any of given entity types, or of {@link #queryCacheTypes()} if they are {@code null}.
+	 */
+	protected Reader performMultiSearch(JsonArray searches, @Nullable Collection<Class<?>> cacheTypes, @Nullable QueryMetrics metrics)
+	throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (JsonElement search: searches)
+			sb.append(toQueryString("/_msearch", search.getAsJsonObject(), metrics)).append('\n');
+		String body = sb.toString();
+		if (metrics!=null)
+			metrics.setQuery(body);
+
+		if (!isQueryCacheUsed())
+			return responseReader(performRequest("/_msearch", new HashMap<>(), body, ElasticSearchMultiSearch.NDJSON, metrics));
+
+		JsonObject keyQuery = new JsonObject();
+		keyQuery.add("searches", searches);
+		String key = queryCacheKey("/_msearch", new HashMap<>(), keyQuery);
+		String response = queryCache.get(key);
+		if (response==null) {
+			long version = queryCache.version();
+			response = EntityUtils.toString(performRequest("/_msearch", new HashMap<>(), body, ElasticSearchMultiSearch.NDJSON,
+				metrics).getEntity(), StandardCharsets.UTF_8);
+			queryCache.put(key, cacheTypes!=null ? cacheTypes : queryCacheTypes(), version, response);
+		} else if (metrics!=null)
+			metrics.setCached(true);
+
+		return new StringReader(response);
+	}
+
+	/**
+	 * Parses {@code _msearch} response of split highlight query, merging hits from both responses. The total and aggregations are taken
+	 * from the first response.
+	 */
+	protected HighlightResults<H> parseSplitHighlightResponse(Reader responseReader, @Nullable QueryMetrics metrics)
+	throws IOException {
+		long start = System.nanoTime();
+		try (JsonReader reader = new JsonReader(responseReader)) {
+			HighlightResults<H> results = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("responses".equals(reader.nextName())) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						HighlightResults<H> partResults = parseHighlightResponse(reader);
+						if (results==null)
+							results = partResults;
+						else
+							mergeSplitHighlightResults(results, partResults);
+					}
+					reader.endArray();
+				} else
+					reader.skipValue();
+			}
+			reader.endObject();
+
+			if (results==null)
+				throw new SearchException("No responses found in ES multi search response");
+
+			recordPhase(metrics, QueryPhase.PARSE, start);
+			if (metrics!=null) {
+				metrics.setTook(results.response.getTook());
+				metrics.setTotalHits(results.total);
+				metrics.setHitCount(results.resultList.size());
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Appends hits of the not highlighted part of split highlight query to the results of the highlighted part.
+	 */
+	protected void mergeSplitHighlightResults(HighlightResults<H> results, HighlightResults<H> restResults) {
+		results.resultList.addAll(restResults.resultList);
+		results.response.timedOut |= restResults.response.timedOut;
+		results.response.terminatedEarly |= restResults.response.terminatedEarly;
+		results.response.failedShards += restResults.response.failedShards;
+	}
 
+	/**
+	 * Adds sorting and paging to the query and resolves the target index name.
+	 */
+	protected String prepareSearch(@Nonnull Pageable pageable, @Nonnull Sortable<?> sortable) {
 		// add sorting manually, because in defaultSortCustomizer() we put it on FullTextQuery (because HS cuts it off from the original query)
 		sortable.getSort()
 			.forEach(sort -> context.getEqlRoot().withSort(sort.getSortField(), sort.isDesc() ? EQLSort.ofDesc() : EQLSort.ofAsc()));
@@ -533,180 +1094,744 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 		else
 			context.getEqlRoot().withPage(0, maxResults!=null ? maxResults : MAX_HIGHLIGHT_RESULT_WINDOW_SIZE);
 
-		// extract ES low-level client
-		SearchFactory searchFactory = context.getHibernateSearch().fullTextEntityManager().getSearchFactory();
-		IndexFamily indexFamily = searchFactory.getIndexFamily(ElasticsearchIndexFamilyType.get());
-		ElasticsearchIndexFamily elasticsearchIndexFamily = indexFamily.unwrap(ElasticsearchIndexFamily.class);
-		RestClient restClient = elasticsearchIndexFamily.getClient(RestClient.class);
-
-		// get the highlighted results
-		try {
-			String indexName = "_all";
-			if (!global) {
-				SearchableEntityInfo mainEntityInfo = loadEntityInfo(context.getEntityClass());
-				indexName = String.join(",", mainEntityInfo.allClasses.stream()
-					.map(clazz -> context.getHibernateSearch().fullTextEntityManager().getSearchFactory()
-						.getIndexedTypeDescriptor(clazz).getIndexDescriptors().iterator().next().getName())
-					.collect(Collectors.toSet()));
-				// add type filter
-				if (mainEntityInfo.allClasses.size()==1)
-					context.getEqlFilterBool().withMust(EQLTypeComponent.of(mainEntityInfo.allClasses.iterator().next()));
-				else {
-					EQLBool typeFilterBool = EQLBool.of();
-					for (Class c: mainEntityInfo.allClasses)
-						typeFilterBool.withShould(EQLTypeComponent.of(c));
-					context.getEqlFilterBool().withMust(EQLBoolComponent.of(typeFilterBool));
-				}
-			}
+		return resolveIndexName();
+	}
 
-			String query = EQL_BUILDER.toJsonString(context.getEqlRoot());
-			if (logger().isTraceEnabled())
-				logger().trace("Executing full text query: {}", query);
-			Response httpResponse = restClient.performRequest(
-				"POST",
-				String.format("/%s/_search", indexName),
-				new HashMap<>(),
-				new NStringEntity(query, ContentType.APPLICATION_JSON)
-			);
-			JsonObject jsonResponse = EQL_BUILDER
-				.getGson()
-				.fromJson(new BufferedReader(new InputStreamReader(httpResponse.getEntity().getContent())), JsonObject.class);
-
-			// transform json results into a list of highlighted results
-			List<ElasticSearchHighlightedResults<E>> resultList = new ArrayList<>();
-			Map<SearchableEntityInfo, Map<Object, ElasticSearchHighlightedResults>> idMap = new LinkedHashMap<>();
-			JsonObject hits = jsonResponse.getAsJsonObject("hits");
-			long total = hits.get("total").getAsLong();
-			hits.getAsJsonArray("hits").forEach(it -> {
-				JsonObject el = (JsonObject) it;
-				List<String> highlightList = new ArrayList<>();
-				if (el.getAsJsonObject("highlight")!=null) {
-
-				el.getAsJsonObject("highlight").entrySet().forEach(entry ->
-					entry.getValue().getAsJsonArray().forEach(it1 -> highlightList.add(it1.getAsString())));
-
-				H result = buildHighlight(
-					el.get("_id").getAsString(),
-					el.get("_type").getAsString(),
-					el.get("_score").isJsonNull() ? 0 : el.get("_score").getAsDouble(),
-					String.join(" ", highlightList.toArray(new String[0]))
-				);
-
-				resultList.add(result);
-
-				} else {
-
-					// in case of match_all query we have no highlights, let's build them manually
-					StringBuilder highlight = new StringBuilder();
-
-					JsonObject source = el.getAsJsonObject("_source");
-					if (source != null) {
-
-						searchableFields.forEach((field, strategy) -> {
-							try {
-								JsonElement element = source.get(field);
-								if (element instanceof JsonArray) {
-									element.getAsJsonArray().forEach(value -> {
-										if (highlight.length() > 0)
-											highlight.append(" ");
-										highlight.append(value.getAsString());
-									});
-								} else if (element instanceof JsonPrimitive) {
-									highlight.append(element.getAsString());
-								}
-							} catch (Exception e) {
-								// silently, no value? no json array value type?
-							}
-						});
+	/**
+	 * Limits {@code _source} returned with hits to what is really used. Highlights are always returned by ES (for not full text queries
+	 * as the beginning of searchable fields), so no {@code _source} is needed unless requested.
+	 */
+	protected void prepareSourceFilter() {
+		if (sourceFields!=null)
+			sourceFilter = toJsonArray(sourceFields);
+		else if (sourceProjection!=null)
+			sourceFilter = toJsonArray(projectionFields(sourceProjection));
+		else
+			sourceFilter = new JsonPrimitive(false);
+	}
 
-					}
+	/**
+	 * Returns json field names of the projection class, as they are mapped by Gson.
+	 */
+	protected static Set<String> projectionFields(Class<?> projectionClass) {
+		Set<String> fields = new LinkedHashSet<>();
+		for (Class<?> c = projectionClass; c!=null && c!=Object.class; c = c.getSuperclass())
+			for (java.lang.reflect.Field field: c.getDeclaredFields())
+				if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) && !field.isSynthetic()) {
+					SerializedName serializedName = field.getAnnotation(SerializedName.class);
+					fields.add(serializedName!=null ? serializedName.value() : field.getName());
+				}
+		return fields;
+	}
 
-					H result = buildHighlight(
-						el.get("_id").getAsString(),
-						el.get("_type").getAsString(),
-						el.get("_score").isJsonNull() ? 0 : el.get("_score").getAsDouble(),
-						highlight.substring(0, Math.min(maxHighlightLength, highlight.length()))
-					);
+	protected static JsonArray toJsonArray(Collection<String> values) {
+		JsonArray array = new JsonArray();
+		values.forEach(array::add);
+		return array;
+	}
 
-					resultList.add(result);
+	/**
+	 * Requests no hits from ES, only their total number, and resolves the target index name. The page is set for {@code _msearch}
+	 * counts executed with the {@code _search} request, while {@code _count} requests take only the query from {@link #buildCountQuery()}.
+	 */
+	protected String prepareCount() {
+		context.getEqlRoot().withPage(0, 0);
+		return resolveIndexName();
+	}
 
+	/**
+	 * Resolves comma-separated index names to be queried, adding the type filter for concrete entity search. The type filter is
+	 * added only once, so this method can be called many times.
+	 */
+	protected String resolveIndexName() {
+		if (indexName==null) {
+			if (!global) {
+				SearchableEntityInfo mainEntityInfo = loadEntityInfo(context.getEntityClass());
+				addTypeFilter(mainEntityInfo.allClasses);
+				indexName = mainEntityInfo.indexName;
+			} else if (globalSearchClasses!=null) {
+				Set<Class> classes = new LinkedHashSet<>();
+				Set<String> indexNames = new LinkedHashSet<>();
+				for (Class<?> globalSearchClass: globalSearchClasses) {
+					SearchableEntityInfo entityInfo = loadEntityInfo(globalSearchClass);
+					classes.addAll(entityInfo.allClasses);
+					indexNames.addAll(entityInfo.indexNames);
 				}
-			});
 
-			// separate fetched entities by type and get its real converted id
-			resultList.forEach(result -> {
-				SearchableEntityInfo entityInfo = loadEntityInfo(result.getType());
-				if (entityInfo.idConverter!=null)
-					idMap.computeIfAbsent(entityInfo, it1 -> new LinkedHashMap<>())
-						.put(entityInfo.idConverter.apply(result.getId()), result);
-			});
+				// indexes can be shared with other entities
+				addTypeFilter(classes);
+				indexName = String.join(",", indexNames);
+			} else
+				indexName = entityRegistry().getGlobalIndexName();
 
-			// having idMap filled we can now fetch real entities from the db and set them for the results list
-			idMap.forEach((entityInfo, localIdMap) -> context.getHibernateSearch().entityManager()
-				.createQuery(String.format("select e from %s e where %s in :idList",
-						entityInfo.entityType.getName(),
-						entityInfo.idName),
-					entityInfo.entityType.getJavaType())
-				.setParameter("idList", localIdMap.keySet())
-				.getResultList()
-				.forEach(entity -> {
-					Object entityId = context.getHibernateSearch().entityManager()
-						.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
-					if (entityId != null) {
-						ElasticSearchHighlightedResults result = localIdMap.get(entityId);
-						if (result != null)
-							result.setEntity(entity);
-					}
-				}));
+			if (indexName.isEmpty())
+				throw new SearchException("No indexed entities found for the global search");
+		}
 
-			return (PH) buildPageableResult(getPageSize(pageable), pageable.getPage(), total, resultList);
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (Exception e) {
-			throw new RuntimeException("Error fetching results from ES low level client", e);
+		return indexName;
+	}
+
+	protected void addTypeFilter(Collection<Class> classes) {
+		if (classes.size()==1)
+			context.getEqlFilterBool().withMust(EQLTypeComponent.of(classes.iterator().next()));
+		else {
+			EQLBool typeFilterBool = EQLBool.of();
+			for (Class c: classes)
+				typeFilterBool.withShould(EQLTypeComponent.of(c));
+			context.getEqlFilterBool().withMust(EQLBoolComponent.of(typeFilterBool));
 		}
 	}
 
-	/** @see #highlight(Pageable, Sortable)  **/
-	@Nonnull public PH highlight() {
-		return highlight(null, null);
+	@Nullable public Set<Class<?>> getGlobalSearchClasses() {
+		return globalSearchClasses;
 	}
 
-	/** @see #highlight(Pageable, Sortable)  **/
-	@Nonnull public PH highlight(@Nullable Pageable pageable) {
-		return highlight(pageable, null);
+	/**
+	 * Limits the global search to indexes of given entity classes and their indexed subclasses. By default the global search is executed
+	 * in indexes of all indexed entities.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withGlobalSearchClasses(@Nonnull Class<?>... classes) {
+		if (!global)
+			throw new IllegalStateException("Search classes can be limited only for the global search");
+		this.globalSearchClasses = new LinkedHashSet<>(Arrays.asList(classes));
+		return this;
 	}
 
-	/** @see #highlight(Pageable, Sortable)  **/
-	@Nonnull public PH highlight(@Nullable Sortable<?> sortable) {
-		return highlight(null, sortable);
+	/**
+	 * Returns whether missing or closed indexes are ignored. By default they are ignored only for the global search.
+	 */
+	public boolean isIgnoreUnavailable() {
+		return ignoreUnavailable!=null ? ignoreUnavailable : global;
 	}
 
-	/** @see #highlight(Pageable, Sortable)  **/
-	@Nonnull public PH highlight(@Nullable PageableSortable<?> ps) {
-		return highlight(ps, ps);
+	/**
+	 * Sets whether missing or closed indexes should be ignored ({@code ignore_unavailable}), instead of failing the request.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withIgnoreUnavailable(boolean ignoreUnavailable) {
+		this.ignoreUnavailable = ignoreUnavailable;
+		return this;
 	}
 
-	public int getMaxHighlightLength() {
-		return maxHighlightLength;
+	/**
+	 * Serializes the query root to json, optimizing it with {@link #getQueryOptimizer()}. Facet filters are put either to the separate
+	 * {@code post_filter}, or to the query itself for requests not supporting post filters.
+	 */
+	protected JsonObject toJson(boolean separatePostFilter) {
+		JsonObject query = EQL_BUILDER.toJson(context.getEqlRoot());
+
+		JsonObject postFilter = buildFacetFilter(null);
+		if (postFilter!=null) {
+			if (separatePostFilter)
+				query.add("post_filter", postFilter);
+			else {
+				JsonObject bool = new JsonObject();
+				if (query.has("query")) {
+					JsonArray must = new JsonArray();
+					must.add(query.get("query"));
+					bool.add("must", must);
+				}
+				JsonArray filter = new JsonArray();
+				filter.add(postFilter);
+				bool.add("filter", filter);
+				JsonObject boolQuery = new JsonObject();
+				boolQuery.add("bool", bool);
+				query.add("query", boolQuery);
+			}
+		}
+
+		return queryOptimizer!=null ? queryOptimizer.optimize(query) : query;
 	}
 
-	public void setMaxHighlightLength(int maxHighlightLength) {
-		this.maxHighlightLength = maxHighlightLength;
+	/**
+	 * Builds the json query to be sent to ES.
+	 */
+	protected JsonObject buildQuery() {
+		return buildQuery(null);
 	}
 
-	protected static class SearchableEntityInfo {
-		@Nonnull protected EntityType entityType;
-		@Nonnull protected String idName;
+	/**
+	 * Builds the json query to be sent to ES, recording {@link QueryPhase#SERIALIZE} metrics.
+	 */
+	protected JsonObject buildQuery(@Nullable QueryMetrics metrics) {
+		long start = System.nanoTime();
+		JsonObject query = toJson(true);
+
+		JsonObject aggregations = buildAggregations();
+		if (aggregations!=null)
+			query.add("aggs", aggregations);
+
+		if (sourceFilter!=null)
+			query.add("_source", sourceFilter);
+
+		if (query.get("highlight") instanceof JsonObject) {
+			JsonObject highlight = query.getAsJsonObject("highlight");
+			if (highlightOptions!=null)
+				highlightOptions.apply(highlight);
+
+			// for not full text queries there's nothing to highlight, and ES returns the beginning of fields instead
+			if (!fullText && !highlight.has("no_match_size"))
+				highlight.addProperty("no_match_size", maxHighlightLength);
+		}
+
+		if (searchAfter!=null)
+			query.add("search_after", searchAfter);
+
+		if (timeout!=null)
+			query.addProperty("timeout", String.format("%dms", timeout.toMillis()));
+		if (terminateAfter!=null)
+			query.addProperty("terminate_after", terminateAfter);
+
+		recordPhase(metrics, QueryPhase.SERIALIZE, start);
+		return query;
+	}
+
+	/**
+	 * Builds the json query to be sent to ES {@code _count} endpoint, containing only the query part.
+	 */
+	protected JsonObject buildCountQuery(@Nullable QueryMetrics metrics) {
+		long start = System.nanoTime();
+		JsonObject query = new JsonObject();
+		JsonElement queryPart = toJson(false).get("query");
+		if (queryPart!=null)
+			query.add("query", queryPart);
+		recordPhase(metrics, QueryPhase.SERIALIZE, start);
+		return query;
+	}
+
+	/**
+	 * Returns url parameters for the count request. {@code _count} endpoint takes only the query from the body, so other options are
+	 * passed as parameters.
+	 */
+	protected Map<String, String> countParams() {
+		Map<String, String> params = indexParams();
+		if (terminateAfter!=null)
+			params.put("terminate_after", terminateAfter.toString());
+		return params;
+	}
+
+	/**
+	 * Returns url parameters for the search request.
+	 */
+	protected Map<String, String> searchParams() {
+		Map<String, String> params = indexParams();
+		if (isRequestCacheUsed())
+			params.put("request_cache", "true");
+		return params;
+	}
+
+	/**
+	 * Returns url parameters related to target indexes, for all requests.
+	 */
+	protected Map<String, String> indexParams() {
+		Map<String, String> params = new HashMap<>();
+		if (isIgnoreUnavailable())
+			params.put("ignore_unavailable", "true");
+		return params;
+	}
+
+	/**
+	 * Returns whether the shard request cache is requested for this query. It's requested only if enabled with
+	 * {@link #withRequestCache(boolean)} and when all filters are cacheable, ie. date ranges are rounded.
+	 */
+	public boolean isRequestCacheUsed() {
+		return requestCache && requestCacheable;
+	}
+
+	/**
+	 * Extracts ES low-level client from Hibernate Search.
+	 */
+	protected RestClient restClient() {
+		SearchFactory searchFactory = context.getHibernateSearch().fullTextEntityManager().getSearchFactory();
+		IndexFamily indexFamily = searchFactory.getIndexFamily(ElasticsearchIndexFamilyType.get());
+		ElasticsearchIndexFamily elasticsearchIndexFamily = indexFamily.unwrap(ElasticsearchIndexFamily.class);
+		return elasticsearchIndexFamily.getClient(RestClient.class);
+	}
+
+	/**
+	 * Executes POST request with json body using non-blocking ES low-level client.
+	 */
+	protected CompletableFuture<Response> performRequestAsync(String endpoint, Map<String, String> params, String body,
+															  @Nullable QueryMetrics metrics,
+															  @Nullable ElasticSearchCancellation cancellation) {
+		return performRequestAsync(endpoint, params, body, ContentType.APPLICATION_JSON, metrics, cancellation);
+	}
+
+	/**
+	 * Executes POST request using non-blocking ES low-level client. The returned future fails with {@link TimeoutException} after the
+	 * {@link #withDeadline(Duration) deadline}, and is cancelled with given cancellation handle. ES low level client 5.6 can't abort
+	 * the request, so in both cases the response is only discarded when it comes.
+	 */
+	protected CompletableFuture<Response> performRequestAsync(String endpoint, Map<String, String> params, String body,
+															  ContentType contentType, @Nullable QueryMetrics metrics,
+															  @Nullable ElasticSearchCancellation cancellation) {
+		long start = System.nanoTime();
+		CompletableFuture<Response> future = new CompletableFuture<>();
+
+		if (deadline!=null) {
+			Duration deadline = this.deadline;
+			ScheduledFuture<?> deadlineTask = DeadlineScheduler.executor.schedule(() -> future.completeExceptionally(
+				new TimeoutException(String.format("ES request deadline of %d ms exceeded", deadline.toMillis()))),
+				deadline.toNanos(), TimeUnit.NANOSECONDS);
+			future.whenComplete((response, e) -> deadlineTask.cancel(false));
+		}
+
+		if (cancellation!=null)
+			cancellation.register(future);
+		if (future.isDone())
+			return future; // cancelled or timed out before sending
+
+		restClient().performRequestAsync(
+			"POST",
+			endpoint,
+			params,
+			new NStringEntity(body, contentType),
+			new ResponseListener() {
+				@Override
+				public void onSuccess(Response response) {
+					if (!future.isDone()) {
+						recordHttpPhase(metrics, start, response);
+						future.complete(response);
+					}
+				}
+
+				@Override
+				public void onFailure(Exception exception) {
+					future.completeExceptionally(exception);
+				}
+			}
+		);
+		return future;
+	}
+
+	/**
+	 * Executes POST request with json query, or takes its response from the {@link #queryCache}, and returns the response reader.
+	 */
+	protected Reader performSearch(String endpoint, Map<String, String> params, JsonObject query, @Nullable QueryMetrics metrics)
+	throws IOException {
+		String body = toQueryString(endpoint, query, metrics);
+		if (!isQueryCacheUsed())
+			return responseReader(performRequest(endpoint, params, body, metrics));
+
+		String key = queryCacheKey(endpoint, params, query);
+		String response = queryCache.get(key);
+		if (response==null) {
+			long version = queryCache.version();
+			response = EntityUtils.toString(performRequest(endpoint, params, body, metrics).getEntity(), StandardCharsets.UTF_8);
+			queryCache.put(key, queryCacheTypes(), version, response);
+		} else if (metrics!=null)
+			metrics.setCached(true);
+
+		return new StringReader(response);
+	}
+
+	/**
+	 * Executes POST request with json body using ES low-level client.
+	 */
+	protected Response performRequest(String endpoint, Map<String, String> params, String body, @Nullable QueryMetrics metrics)
+	throws IOException {
+		return performRequest(endpoint, params, body, ContentType.APPLICATION_JSON, metrics);
+	}
+
+	protected Response performRequest(String endpoint, Map<String, String> params, String body, ContentType contentType,
+									  @Nullable QueryMetrics metrics) throws IOException {
+		// the blocking client can't be interrupted, so with the deadline or cancellation the caller waits for the non-blocking one
+		if (deadline!=null || cancellation!=null)
+			return awaitResponse(performRequestAsync(endpoint, params, body, contentType, metrics, cancellation));
+
+		long start = System.nanoTime();
+		Response httpResponse = restClient().performRequest("POST", endpoint, params, new NStringEntity(body, contentType));
+		recordHttpPhase(metrics, start, httpResponse);
+		return httpResponse;
+	}
+
+	/**
+	 * Waits for the response of non-blocking request.
+	 *
+	 * @throws SearchException If the request deadline has been exceeded.
+	 * @throws CancellationException If the request has been cancelled.
+	 */
+	protected Response awaitResponse(CompletableFuture<Response> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for ES response");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException)
+				throw new SearchException(e.getCause().getMessage(), e.getCause());
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw executionError(e.getCause());
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #performSearch(String, Map, JsonObject, QueryMetrics)}, cancelled with given cancellation
+	 * handle.
+	 */
+	protected CompletableFuture<Reader> performSearchAsync(String endpoint, Map<String, String> params, JsonObject query,
+														   @Nullable QueryMetrics metrics,
+														   @Nullable ElasticSearchCancellation cancellation) {
+		String body = toQueryString(endpoint, query, metrics);
+		if (!isQueryCacheUsed())
+			return performRequestAsync(endpoint, params, body, metrics, cancellation).thenApply(unchecked(this::responseReader));
+
+		String key = queryCacheKey(endpoint, params, query);
+		String cached = queryCache.get(key);
+		if (cached!=null) {
+			if (metrics!=null)
+				metrics.setCached(true);
+			return CompletableFuture.completedFuture(new StringReader(cached));
+		}
+
+		long version = queryCache.version();
+		Collection<Class<?>> types = queryCacheTypes();
+		return performRequestAsync(endpoint, params, body, metrics, cancellation).thenApply(unchecked(httpResponse -> {
+			String response = EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8);
+			queryCache.put(key, types, version, response);
+			return new StringReader(response);
+		}));
+	}
+
+	protected String toQueryString(String endpoint, JsonObject query, @Nullable QueryMetrics metrics) {
+		long start = System.nanoTime();
+		String body = query.toString();
+		recordPhase(metrics, QueryPhase.SERIALIZE, start);
+		if (metrics!=null)
+			metrics.setQuery(body);
+
+		if (logger().isTraceEnabled())
+			logger().trace("Executing query: {} {}", endpoint, body);
+		return body;
+	}
+
+	protected Reader responseReader(Response httpResponse) throws IOException {
+		return new BufferedReader(new InputStreamReader(httpResponse.getEntity().getContent(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the number of matching documents from {@code _count} response.
+	 */
+	protected long parseCountResponse(Reader responseReader, @Nullable QueryMetrics metrics) throws IOException {
+		long start = System.nanoTime();
+		try (JsonReader reader = new JsonReader(responseReader)) {
+			long count = 0;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("count".equals(reader.nextName()))
+					count = reader.nextLong();
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+
+			recordPhase(metrics, QueryPhase.PARSE, start);
+			if (metrics!=null)
+				metrics.setTotalHits(count);
+			return count;
+		}
+	}
+
+	/**
+	 * Transforms json results into a list of highlighted results, streaming them directly from the response.
+	 */
+	protected HighlightResults<H> parseHighlightResponse(Response httpResponse) throws IOException {
+		try (JsonReader reader = new JsonReader(responseReader(httpResponse))) {
+			return parseHighlightResponse(reader);
+		}
+	}
+
+	/**
+	 * Transforms json results into a list of highlighted results, recording {@link QueryPhase#PARSE} metrics.
+	 */
+	protected HighlightResults<H> parseHighlightResponse(Reader responseReader, @Nullable QueryMetrics metrics) throws IOException {
+		long start = System.nanoTime();
+		try (JsonReader reader = new JsonReader(responseReader)) {
+			HighlightResults<H> results = parseHighlightResponse(reader);
+			recordPhase(metrics, QueryPhase.PARSE, start);
+			if (metrics!=null) {
+				metrics.setTook(results.response.getTook());
+				metrics.setTotalHits(results.total);
+				metrics.setHitCount(results.resultList.size());
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Reads a single search response object from the current reader position into a list of highlighted results.
+	 */
+	protected HighlightResults<H> parseHighlightResponse(JsonReader reader) throws IOException {
+		HighlightResults<H> results = new HighlightResults<>();
+		ElasticSearchResponseParser.SearchResponse response = new ElasticSearchResponseParser(searchableFields.keySet(),
+			sourceProjection!=null).parse(reader, hit -> {
+				H result = buildHighlight(hit);
+				if (sourceProjection!=null && hit.getRawSource()!=null)
+					result.setProjection(SOURCE_GSON.fromJson(hit.getRawSource(), sourceProjection));
+				if (cursorPaging && hit.getSortValues()!=null)
+					result.setCursor(new ElasticSearchCursor(hit.getSortValues()));
+				results.resultList.add(result);
+			});
+		if (response.getError()!=null)
+			throw new SearchException(String.format("Error fetching results from ES: %s", response.getError()));
+
+		results.total = response.getTotal();
+		results.response = response;
+		return results;
+	}
+
+	/**
+	 * Fetches entities for highlighted results from the db and sets them for the results.
+	 */
+	protected HighlightResults<H> loadEntities(HighlightResults<H> results, @Nullable QueryMetrics metrics) {
+		switch (hydrationMode) {
+			case EAGER:
+				loadEntitiesMeasured(results.resultList, metrics);
+				break;
+
+			case LAZY:
+				Runnable lazyEntityLoader = () -> {
+					results.resultList.forEach(result -> result.setLazyEntityLoader(null));
+					loadEntitiesMeasured(results.resultList, metrics);
+				};
+				results.resultList.forEach(result -> result.setLazyEntityLoader(lazyEntityLoader));
+				break;
+
+			case NONE:
+				break;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Fetches entities for highlighted results, recording {@link QueryPhase#HYDRATE} metrics.
+	 */
+	protected void loadEntitiesMeasured(Collection<? extends ElasticSearchHighlightedResults> resultList,
+										@Nullable QueryMetrics metrics) {
+		long start = System.nanoTime();
+		int count = loadEntities(resultList);
+		recordPhase(metrics, QueryPhase.HYDRATE, start);
+		if (metrics!=null)
+			metrics.addHydratedCount(count);
+	}
+
+	/**
+	 * Fetches entities for highlighted results from the db and sets them for the results. The results can be of different types and
+	 * come from different queries, and for each entity type only one db query is executed. Returns the number of fetched entities.
+	 */
+	@SuppressWarnings("unchecked")
+	protected int loadEntities(Collection<? extends ElasticSearchHighlightedResults> resultList) {
+		Map<SearchableEntityInfo, Map<Object, List<ElasticSearchHighlightedResults>>> idMap = new LinkedHashMap<>();
+
+		// separate fetched entities by type and get its real converted id
+		resultList.forEach(result -> {
+			SearchableEntityInfo entityInfo = loadEntityInfo(result.getType());
+			if (entityInfo!=null && entityInfo.idConverter!=null)
+				idMap.computeIfAbsent(entityInfo, it1 -> new LinkedHashMap<>())
+					.computeIfAbsent(entityInfo.idConverter.apply(result.getId()), it1 -> new ArrayList<>(1))
+					.add(result);
+		});
+
+		// having idMap filled we can now fetch real entities from the db and set them for the results list
+		int[] count = {0};
+		idMap.forEach((entityInfo, localIdMap) ->
+			entityLoader.load(context.getHibernateSearch().entityManager(), (Class<Object>) entityInfo.entityType.getJavaType(),
+				entityInfo.idName, new ArrayList<>(localIdMap.keySet()))
+				.forEach((entityId, entity) -> {
+					List<ElasticSearchHighlightedResults> results = localIdMap.get(entityId);
+					if (results!=null) {
+						results.forEach(result -> result.setEntity(entity));
+						count[0]++;
+					}
+				}));
+
+		return count[0];
+	}
+
+	/**
+	 * Builds the page of highlighted results with {@link #buildPageableResult(Integer, Integer, long, List)}. If it's
+	 * {@link ElasticSearchPage}, it's also marked whether the results are partial.
+	 */
+	@SuppressWarnings("unchecked")
+	protected PH buildHighlightPage(Pageable pageable, HighlightResults<H> results) {
+		PH page = (PH) buildPageableResult(getPageSize(pageable), pageable.getPage(), results.total, results.resultList);
+		if (page instanceof ElasticSearchPage && results.response!=null) {
+			ElasticSearchPage<H> elasticSearchPage = (ElasticSearchPage<H>) page;
+			elasticSearchPage.setTimedOut(results.response.isTimedOut());
+			elasticSearchPage.setTerminatedEarly(results.response.isTerminatedEarly());
+			elasticSearchPage.setFailedShards(results.response.getFailedShards());
+		}
+		return page;
+	}
+
+	/**
+	 * Builds {@link ElasticSearchPage}, so that highlighted results can tell whether they are partial. Subclasses using their own page
+	 * type should return it here.
+	 */
+	@Nonnull
+	@Override
+	protected <T> Page<T> buildPageableResult(Integer pageSize, Integer page, long count, List<T> data) {
+		return new ElasticSearchPage<>(pageSize, page, count, data);
+	}
+
+	/**
+	 * Returns search fields used by this query, which are only these of requested search fields existing in the target indexes.
+	 */
+	@Nonnull public Map<String, FieldSearchStrategy> getSearchableFields() {
+		return searchableFields;
+	}
+
+	public int getMaxHighlightLength() {
+		return maxHighlightLength;
+	}
+
+	public void setMaxHighlightLength(int maxHighlightLength) {
+		this.maxHighlightLength = maxHighlightLength;
+	}
+
+	@Nullable public ElasticSearchHighlightOptions getHighlightOptions() {
+		return highlightOptions;
+	}
+
+	/**
+	 * Sets highlighting settings, like fragment sizes, the highlighter type or the number of highlighted top hits. Highlighting is
+	 * often the most expensive part of the search for long texts, and can be tuned with these settings.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withHighlightOptions(
+		@Nullable ElasticSearchHighlightOptions highlightOptions) {
+		this.highlightOptions = highlightOptions;
+		return this;
+	}
+
+	/**
+	 * Limits {@code _source} fields returned from ES with each highlighted hit to given fields. By default no {@code _source} is
+	 * returned at all, unless requested by {@link #withSourceProjection(Class)}. For not full text queries highlights are built from
+	 * the beginning of searchable fields returned by ES with {@code no_match_size}.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withSourceFields(@Nonnull Collection<String> sourceFields) {
+		this.sourceFields = new LinkedHashSet<>(sourceFields);
+		return this;
+	}
+
+	@Nonnull public EntityLoader getEntityLoader() {
+		return entityLoader;
+	}
+
+	/**
+	 * Sets the strategy of fetching entities from the db for highlighted results. {@link MultiLoadEntityLoader} is used by default.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withEntityLoader(@Nonnull EntityLoader entityLoader) {
+		this.entityLoader = entityLoader;
+		return this;
+	}
+
+	@Nullable public ChronoUnit getDateRangeRounding() {
+		return dateRangeRounding;
+	}
+
+	/**
+	 * Rounds bounds of date range filters added after this call to given unit, like {@link ChronoUnit#HOURS} or {@link ChronoUnit#DAYS}.
+	 * Relative ranges like "last 7 days" produce then the same query for the whole unit, which can be served from ES caches.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withDateRangeRounding(@Nullable ChronoUnit dateRangeRounding) {
+		if (dateRangeRounding!=null && dateRangeRounding.getDuration().compareTo(ChronoUnit.DAYS.getDuration()) > 0)
+			throw new IllegalArgumentException(String.format("Date range rounding unit longer than day: %s", dateRangeRounding));
+		this.dateRangeRounding = dateRangeRounding;
+		return this;
+	}
+
+	public boolean isRequestCache() {
+		return requestCache;
+	}
+
+	/**
+	 * Requests ES shard request cache for {@code highlight()} queries, unless the query contains date range filters with exact instants.
+	 *
+	 * @see #withDateRangeRounding(ChronoUnit)
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withRequestCache(boolean requestCache) {
+		this.requestCache = requestCache;
+		return this;
+	}
+
+	@Nullable public ElasticSearchQueryOptimizer getQueryOptimizer() {
+		return queryOptimizer;
+	}
+
+	/**
+	 * Sets the optimizer rewriting the json query before it's sent to ES, or {@code null} to send the query as it's built.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withQueryOptimizer(@Nullable ElasticSearchQueryOptimizer queryOptimizer) {
+		this.queryOptimizer = queryOptimizer;
+		return this;
+	}
+
+	@Nonnull public HydrationMode getHydrationMode() {
+		return hydrationMode;
+	}
+
+	/**
+	 * Sets when entities for highlighted results are fetched from the db. They are fetched eagerly by default.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withHydrationMode(@Nonnull HydrationMode hydrationMode) {
+		this.hydrationMode = hydrationMode;
+		return this;
+	}
+
+	/**
+	 * Maps {@code _source} of each highlighted result to the instance of given class using Gson, available then with
+	 * {@link ElasticSearchHighlightedResults#getProjection()}. Only {@code _source} fields matching the projection class fields are
+	 * requested from ES, unless {@link #withSourceFields(Collection)} is used. Because the projection usually replaces the entity,
+	 * this also switches off fetching entities from the db with {@link HydrationMode#NONE}.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withSourceProjection(@Nonnull Class<?> projectionClass) {
+		this.sourceProjection = projectionClass;
+		this.hydrationMode = HydrationMode.NONE;
+		return this;
+	}
+
+	@Nonnull public Executor getAsyncExecutor() {
+		return asyncExecutor;
+	}
+
+	/**
+	 * Sets the default executor for parsing results and fetching entities in asynchronous methods.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withAsyncExecutor(@Nonnull Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		return this;
+	}
+
+	/**
+	 * Highlighted results fetched from ES, with the total number of hits.
+	 */
+	protected static class HighlightResults<H> {
+		protected ElasticSearchResponseParser.SearchResponse response;
+		protected long total;
+		@Nonnull protected List<H> resultList = new ArrayList<>();
+	}
+
+	protected static class SearchableEntityInfo {
+		@Nonnull protected EntityType entityType;
+		@Nonnull protected String idName;
 		@Nullable protected Function<String, Object> idConverter;
 		@Nonnull protected List<Class> allClasses;
+		@Nonnull protected Set<String> indexNames;
+		@Nonnull protected String indexName; // comma-joined indexNames, ready to use in ES request path
+		@Nonnull protected Map<String, Optional<FieldBridge>> fieldBridges = new ConcurrentHashMap<>(); // see SearchableEntityRegistry
 
 		public SearchableEntityInfo(@Nonnull EntityType entityType, @Nonnull String idName, @Nullable Function<String, Object> idConverter,
-									@Nonnull List<Class> allClasses) {
+									@Nonnull List<Class> allClasses, @Nonnull Set<String> indexNames) {
 			this.entityType = entityType;
 			this.idName = idName;
 			this.idConverter = idConverter;
 			this.allClasses = allClasses;
+			this.indexNames = indexNames;
+			this.indexName = String.join(",", indexNames);
 		}
 
 		@Override
@@ -730,6 +1855,654 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 		}
 	}
 
+	/**********************************************************************************************************
+	 * Cursor paging support
+	 **********************************************************************************************************/
+
+	/**
+	 * Provides highlighted results like {@link #highlight(Pageable, Sortable)}, but using
+	 * <a href="https://www.elastic.co/guide/en/elasticsearch/reference/5.6/search-request-search-after.html">search_after</a> cursor
+	 * instead of the offset. The cost of fetching deep pages doesn't grow with the page number then, and it's possible to go past
+	 * {@link #MAX_HIGHLIGHT_RESULT_WINDOW_SIZE} results.
+	 * <p>
+	 * The first page is fetched with {@code null} cursor, and each next page with {@link ElasticSearchHighlightedResults#getCursor()}
+	 * of the last result from the previous page. The results are sorted using given sortable, then by score, and finally by the
+	 * tiebreaker field (see {@link #withCursorTiebreaker(String)}) to make the order total.
+	 * </p>
+	 * <p>
+	 * Next pages reflect the current index state, so documents changed between requests may be skipped or repeated.
+	 * </p>
+	 */
+	@Nonnull public PH highlightAfter(@Nullable String cursor, int pageSize, @Nullable Sortable<?> sortable) {
+		Sortable<?> finalSortable = sortable!=null ? sortable : BasePageableRequest.ofUnpaged();
+
+		return executeRequest("highlightAfter", metrics -> {
+			String indexName = prepare(() ->
+				prepareHighlightAfter(cursor!=null ? ElasticSearchCursor.decode(cursor) : null, pageSize, finalSortable), metrics);
+			Reader reader = performSearch(searchEndpoint(indexName), searchParams(), buildQuery(metrics), metrics);
+			return buildHighlightPage(BasePageableRequest.ofDefault().withPageSize(pageSize),
+				loadEntities(parseHighlightResponse(reader, metrics), metrics));
+		});
+	}
+
+	/** @see #highlightAfter(String, int, Sortable)  **/
+	@Nonnull public PH highlightAfter(@Nullable String cursor, int pageSize) {
+		return highlightAfter(cursor, pageSize, null);
+	}
+
+	/**
+	 * Sets the field used as the last sort criteria for {@link #highlightAfter(String, int, Sortable)}, which needs to have unique
+	 * values. By default it's the entity id field for concrete entity search, and {@code _uid} for global search.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withCursorTiebreaker(@Nonnull String cursorTiebreaker) {
+		this.cursorTiebreaker = cursorTiebreaker;
+		return this;
+	}
+
+	/**
+	 * Adds highlight, sorting, paging and the cursor to the query and resolves the target index name.
+	 */
+	protected String prepareHighlightAfter(@Nullable ElasticSearchCursor cursor, int pageSize, @Nonnull Sortable<?> sortable) {
+		cursorPaging = true;
+
+		context.getEqlRoot().withHighlight(EQLHighlight.of(searchableFields.keySet()));
+		prepareSourceFilter();
+
+		sortable.getSort()
+			.forEach(sort -> context.getEqlRoot().withSort(sort.getSortField(), sort.isDesc() ? EQLSort.ofDesc() : EQLSort.ofAsc()));
+		context.getEqlRoot().withSort("_score", EQLSort.ofDesc());
+		context.getEqlRoot().withSort(cursorTiebreaker!=null ? cursorTiebreaker : defaultCursorTiebreaker(), EQLSort.ofAsc());
+
+		// search_after requires to always start from the beginning
+		context.getEqlRoot().withPage(0, pageSize);
+
+		if (cursor!=null)
+			searchAfter = cursor.getAfter();
+
+		return resolveIndexName();
+	}
+
+	protected String defaultCursorTiebreaker() {
+		return global ? "_uid" : loadEntityInfo(context.getEntityClass()).idName;
+	}
+
+	/**
+	 * Returns search endpoint for given indexes.
+	 */
+	protected String searchEndpoint(String indexName) {
+		return String.format("/%s/_search", indexName);
+	}
+
+	/**********************************************************************************************************
+	 * Export support
+	 **********************************************************************************************************/
+
+	/**
+	 * Exports all entities matching this query in batches, using sliced scroll. The slices are scrolled in parallel on the given
+	 * executor, while the entities are fetched from the db lazily in the thread consuming the stream. The stream needs to be closed
+	 * when not consumed till the end, so it's best to use it within try-with-resources block.
+	 * <p>
+	 * The entities stay in the persistence context after they are consumed, so for big exports the caller should clear the
+	 * {@link EntityManager} between the batches.
+	 * </p>
+	 *
+	 * @param slices Number of slices to be scrolled in parallel, usually up to the number of shards.
+	 * @param batchSize Number of hits fetched from ES for each slice in a single request.
+	 * @param executor Executor for scrolling slices, should be able to run all slices in parallel.
+	 */
+	@Nonnull public Stream<List<E>> exportBatches(int slices, int batchSize, @Nonnull Executor executor) {
+		return new ElasticSearchExport<>(this, slices, batchSize, executor).stream();
+	}
+
+	/**
+	 * Exports all entities matching this query.
+	 *
+	 * @see #exportBatches(int, int, Executor)
+	 */
+	@Nonnull public Stream<E> export(int slices, int batchSize, @Nonnull Executor executor) {
+		return exportBatches(slices, batchSize, executor).flatMap(List::stream);
+	}
+
+	/**
+	 * Prepares the query for scrolling all results in the most efficient {@code _doc} order and resolves the target index name.
+	 */
+	protected String prepareExport(int batchSize) {
+		context.getEqlRoot().withSort("_doc", EQLSort.ofAsc());
+		context.getEqlRoot().withPage(0, batchSize);
+		sourceFilter = new JsonPrimitive(false); // only ids and types are needed
+		return resolveIndexName();
+	}
+
+	/**********************************************************************************************************
+	 * Facets support
+	 **********************************************************************************************************/
+
+	public static final int DEFAULT_TERMS_FACET_SIZE = 10;
+
+	/**
+	 * Declares facet counting documents for each of the most frequent field values.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withTermsFacet(@Nonnull String name, @Nonnull String field,
+																						 int size) {
+		JsonObject terms = new JsonObject();
+		terms.addProperty("field", field);
+		terms.addProperty("size", size);
+		return withFacet(name, "terms", terms);
+	}
+
+	/** @see #withTermsFacet(String, String, int) **/
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withTermsFacet(@Nonnull String name, @Nonnull String field) {
+		return withTermsFacet(name, field, DEFAULT_TERMS_FACET_SIZE);
+	}
+
+	/**
+	 * Declares facet counting documents in ranges between given boundaries. For {@code 10, 100} boundaries the buckets are: below 10,
+	 * from 10 to 100 and from 100 up.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withRangeFacet(@Nonnull String name, @Nonnull String field,
+																						 @Nonnull Number... boundaries) {
+		JsonArray ranges = new JsonArray();
+		for (int i = 0; i <= boundaries.length; i++) {
+			JsonObject range = new JsonObject();
+			if (i > 0)
+				range.addProperty("from", boundaries[i-1]);
+			if (i < boundaries.length)
+				range.addProperty("to", boundaries[i]);
+			ranges.add(range);
+		}
+
+		JsonObject range = new JsonObject();
+		range.addProperty("field", field);
+		range.add("ranges", ranges);
+		return withFacet(name, "range", range);
+	}
+
+	/**
+	 * Declares facet counting documents in date buckets of given interval, like {@code day}, {@code month} or {@code 1h}. Empty
+	 * buckets are not returned.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withDateHistogramFacet(@Nonnull String name,
+																								 @Nonnull String field,
+																								 @Nonnull String interval) {
+		JsonObject histogram = new JsonObject();
+		histogram.addProperty("field", field);
+		histogram.addProperty("interval", interval);
+		histogram.addProperty("min_doc_count", 1);
+		return withFacet(name, "date_histogram", histogram);
+	}
+
+	protected HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withFacet(String name, String type, JsonObject body) {
+		JsonObject aggregation = new JsonObject();
+		aggregation.add(type, body);
+		facets.put(name, aggregation);
+		return this;
+	}
+
+	/**
+	 * Adds filters from the runnable as the filters selected in given facet. They limit returned results like all other filters, but
+	 * are ignored when counting this facet, so that the facet still shows counts for its other values. Other facets are counted with
+	 * these filters applied.
+	 *
+	 * <pre>{@code
+	 * qb.withTermsFacet("status", "status")
+	 *   .withFacetFilter("status", () -> qb.add("status", SingleValueQueryFilter.of(Status.ACTIVE)))
+	 *   .highlightWithFacets(pageable);
+	 * }</pre>
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withFacetFilter(@Nonnull String name, @Nonnull Runnable r) {
+		EQLBool bool = context.doWithNewFilterBool(r);
+		if (!bool.isEmpty())
+			facetFilters.computeIfAbsent(name, it -> new ArrayList<>()).add(bool);
+		return this;
+	}
+
+	/**
+	 * The same as {@link #highlight(Pageable, Sortable)}, but returns also declared facets computed in the same request.
+	 */
+	@Nonnull public ElasticSearchFacetedResults<PH> highlightWithFacets(@Nullable Pageable pageable, @Nullable Sortable<?> sortable) {
+		Pageable finalPageable = pageable!=null ? pageable : BasePageableRequest.ofUnpaged();
+		Sortable<?> finalSortable = sortable!=null ? sortable : BasePageableRequest.ofUnpaged();
+
+		return executeRequest("highlightWithFacets", metrics -> {
+			String indexName = prepare(() -> prepareHighlight(finalPageable, finalSortable), metrics);
+			HighlightResults<H> results = searchHighlight(indexName, metrics);
+			return new ElasticSearchFacetedResults<>(buildHighlightPage(finalPageable, loadEntities(results, metrics)),
+				parseFacets(results.response));
+		});
+	}
+
+	/** @see #highlightWithFacets(Pageable, Sortable)  **/
+	@Nonnull public ElasticSearchFacetedResults<PH> highlightWithFacets(@Nullable Pageable pageable) {
+		return highlightWithFacets(pageable, null);
+	}
+
+	/** @see #highlightWithFacets(Pageable, Sortable)  **/
+	@Nonnull public ElasticSearchFacetedResults<PH> highlightWithFacets(@Nullable PageableSortable<?> ps) {
+		return highlightWithFacets(ps, ps);
+	}
+
+	/**
+	 * The same as {@link #count()}, but returns also declared facets computed in the same request.
+	 */
+	@Nonnull public ElasticSearchFacetedResults<Long> countWithFacets() {
+		return executeRequest("countWithFacets", metrics -> {
+			String indexName = prepare(this::prepareCount, metrics);
+			HighlightResults<H> results = parseHighlightResponse(performSearch(searchEndpoint(indexName), searchParams(),
+				buildQuery(metrics), metrics), metrics);
+			return new ElasticSearchFacetedResults<>(results.total, parseFacets(results.response));
+		});
+	}
+
+	/**
+	 * Builds the filter from all facet filters except the filters of given facet, or returns {@code null} if there are no such filters.
+	 */
+	@Nullable protected JsonObject buildFacetFilter(@Nullable String exceptFacet) {
+		JsonArray filter = new JsonArray();
+		facetFilters.forEach((name, bools) -> {
+			if (!name.equals(exceptFacet))
+				bools.forEach(bool -> filter.add(EQL_BUILDER.toJson(EQLRoot.of().withQuery(EQLBoolComponent.of(bool))).get("query")));
+		});
+
+		if (filter.size()==0)
+			return null;
+
+		JsonObject bool = new JsonObject();
+		bool.add("filter", filter);
+		JsonObject query = new JsonObject();
+		query.add("bool", bool);
+		return query;
+	}
+
+	/**
+	 * Builds aggregations for declared facets. Each facet aggregation is wrapped in the filter aggregation applying filters of other
+	 * facets, because facet filters are applied to hits only as {@code post_filter}.
+	 */
+	@Nullable protected JsonObject buildAggregations() {
+		if (facets.isEmpty())
+			return null;
+
+		JsonObject aggregations = new JsonObject();
+		facets.forEach((name, aggregation) -> {
+			JsonObject filter = buildFacetFilter(name);
+			if (filter==null)
+				aggregations.add(name, aggregation);
+			else {
+				JsonObject nested = new JsonObject();
+				nested.add(name, aggregation);
+				JsonObject filtered = new JsonObject();
+				filtered.add("filter", filter);
+				filtered.add("aggs", nested);
+				aggregations.add(name, filtered);
+			}
+		});
+		return aggregations;
+	}
+
+	@Nonnull protected Map<String, ElasticSearchFacet> parseFacets(ElasticSearchResponseParser.SearchResponse response) {
+		Map<String, ElasticSearchFacet> result = new LinkedHashMap<>();
+		JsonObject aggregations = response.getAggregations();
+		if (aggregations==null)
+			return result;
+
+		for (String name: facets.keySet()) {
+			JsonElement aggregation = aggregations.get(name);
+			if (aggregation==null || !aggregation.isJsonObject())
+				continue;
+
+			// unwrap the filter aggregation
+			if (aggregation.getAsJsonObject().has(name))
+				aggregation = aggregation.getAsJsonObject().get(name);
+
+			ElasticSearchFacet facet = new ElasticSearchFacet(name);
+			JsonElement buckets = aggregation.getAsJsonObject().get("buckets");
+			if (buckets!=null && buckets.isJsonArray())
+				for (JsonElement element: buckets.getAsJsonArray()) {
+					JsonObject bucket = element.getAsJsonObject();
+					JsonElement key = bucket.has("key_as_string") ? bucket.get("key_as_string") : bucket.get("key");
+					facet.getBuckets().add(new ElasticSearchFacet.Bucket(
+						key.getAsString(),
+						bucket.get("doc_count").getAsLong(),
+						bucket.has("from") ? bucket.get("from").getAsDouble() : null,
+						bucket.has("to") ? bucket.get("to").getAsDouble() : null
+					));
+				}
+			result.put(name, facet);
+		}
+
+		return result;
+	}
+
+	/**********************************************************************************************************
+	 * Query execution
+	 **********************************************************************************************************/
+
+	/**
+	 * Function throwing {@link IOException}, like ES low level client requests and response parsing.
+	 */
+	@FunctionalInterface
+	protected interface IOFunction<T, R> {
+		R apply(T t) throws IOException;
+	}
+
+	/**
+	 * Executes the query reported to {@link QueryInstrumentation} as given operation. The execution gets the metrics of this execution,
+	 * which are finished when it completes, and its errors are wrapped with {@link #executionError(Throwable)}.
+	 */
+	protected <T> T executeRequest(String operation, IOFunction<QueryMetrics, T> execution) {
+		QueryMetrics metrics = startMetrics(operation);
+		try {
+			return execution.apply(metrics);
+		} catch (IOException e) {
+			throw executionError(e);
+		} finally {
+			finishMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #executeRequest(String, IOFunction)}. The execution gets also the cancellation handle of this
+	 * execution, and the metrics are finished when the returned future completes.
+	 */
+	protected <T> CompletableFuture<T> executeRequestAsync(String operation,
+														   BiFunction<QueryMetrics, ElasticSearchCancellation, CompletableFuture<T>> execution) {
+		QueryMetrics metrics = startMetrics(operation);
+		try {
+			ElasticSearchCancellation cancellation = requestCancellation();
+			return cancellation.register(execution.apply(metrics, cancellation).whenComplete((result, e) -> finishMetrics(metrics)));
+		} catch (RuntimeException e) {
+			finishMetrics(metrics);
+			CompletableFuture<T> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	/**
+	 * Runs the query preparation returning the target index name, recording it as {@link QueryPhase#BUILD}.
+	 */
+	protected String prepare(Supplier<String> preparation, @Nullable QueryMetrics metrics) {
+		long start = System.nanoTime();
+		String indexName = preparation.get();
+		recordBuildPhase(metrics, start);
+		return indexName;
+	}
+
+	/**
+	 * Adapts the function to {@link CompletableFuture} stages, wrapping its errors like {@link #executeRequest(String, IOFunction)}.
+	 */
+	protected static <T, R> Function<T, R> unchecked(IOFunction<T, R> function) {
+		return t -> {
+			try {
+				return function.apply(t);
+			} catch (IOException e) {
+				throw executionError(e);
+			}
+		};
+	}
+
+	protected static RuntimeException executionError(Throwable e) {
+		if (e instanceof RuntimeException)
+			return (RuntimeException) e;
+		return new RuntimeException("Error fetching results from ES low level client", e);
+	}
+
+	/**********************************************************************************************************
+	 * Instrumentation support
+	 **********************************************************************************************************/
+
+	@Nonnull public QueryInstrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Sets the instrumentation receiving metrics of all query executions.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withInstrumentation(@Nonnull QueryInstrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+		return this;
+	}
+
+	/**
+	 * Reports queries executed longer than given threshold to {@link QueryInstrumentation#onSlowQuery(QueryMetrics, String)}.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withSlowQueryThreshold(long slowQueryThresholdMillis) {
+		this.slowQueryThreshold = slowQueryThresholdMillis;
+		return this;
+	}
+
+	/**
+	 * Starts collecting metrics of the query execution. The metrics are passed through all phases of this execution, so that
+	 * overlapping asynchronous executions of the same builder don't mix their metrics.
+	 */
+	@Nonnull protected QueryMetrics startMetrics(String operation) {
+		return new QueryMetrics(operation, context.getEntityClass());
+	}
+
+	protected void recordPhase(@Nullable QueryMetrics metrics, QueryPhase phase, long startNanos) {
+		if (metrics!=null)
+			instrumentation.onPhase(metrics, phase, metrics.addPhase(phase, System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Records the query preparation started at given time, together with the query building in the constructor.
+	 */
+	protected void recordBuildPhase(@Nullable QueryMetrics metrics, long startNanos) {
+		recordPhase(metrics, QueryPhase.BUILD, startNanos - constructorNanos);
+		constructorNanos = 0;
+	}
+
+	protected void recordHttpPhase(@Nullable QueryMetrics metrics, long startNanos, Response httpResponse) {
+		recordPhase(metrics, QueryPhase.HTTP, startNanos);
+		if (metrics!=null && httpResponse.getEntity()!=null)
+			metrics.setResponseBytes(httpResponse.getEntity().getContentLength());
+	}
+
+	protected void finishMetrics(@Nullable QueryMetrics metrics) {
+		if (metrics==null)
+			return;
+
+		metrics.finish();
+		instrumentation.onQuery(metrics);
+		if (slowQueryThreshold >= 0 && metrics.getTotalNanos() > TimeUnit.MILLISECONDS.toNanos(slowQueryThreshold)
+				&& metrics.getQuery()!=null)
+			instrumentation.onSlowQuery(metrics, metrics.getQuery());
+	}
+
+	/**********************************************************************************************************
+	 * Query cache support
+	 **********************************************************************************************************/
+
+	@Nullable public ElasticSearchQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Caches ES responses for {@code list()}, {@code highlight()} and {@code count()} queries in given cache, which should be shared
+	 * among builders. With the cache, {@code list()} is executed with the ES low level client like {@code highlight()} instead of
+	 * Hibernate Search {@link FullTextQuery}, unless its results don't fit in {@link #MAX_HIGHLIGHT_RESULT_WINDOW_SIZE}, like for
+	 * unpaged lists with unlimited results.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withQueryCache(@Nullable ElasticSearchQueryCache queryCache) {
+		this.queryCache = queryCache;
+		return this;
+	}
+
+	protected boolean isQueryCacheUsed() {
+		return queryCache!=null;
+	}
+
+	/**
+	 * Tells whether {@code list()} results can be fetched with a single ES request within {@link #MAX_HIGHLIGHT_RESULT_WINDOW_SIZE},
+	 * so that the response can be cached.
+	 */
+	protected boolean isListCacheable(@Nonnull Pageable pageable) {
+		if (pageable.isPaged())
+			return pageable.getOffset() + getPageSize(pageable) <= MAX_HIGHLIGHT_RESULT_WINDOW_SIZE;
+		return maxResults!=null && maxResults <= MAX_HIGHLIGHT_RESULT_WINDOW_SIZE;
+	}
+
+	/**
+	 * Executes {@code list()} query with ES low level client, so that the response can be cached.
+	 */
+	@SuppressWarnings("unchecked")
+	protected P listCached(@Nonnull Pageable pageable, @Nonnull Sortable<?> sortable) {
+		return executeRequest("list", metrics -> {
+			String indexName = prepare(() -> {
+				String searchIndexName = prepareSearch(pageable, sortable);
+				// the same order as in defaultSortCustomizer()
+				if (!sortable.getSort().isEmpty())
+					context.getEqlRoot().withSort("_score", EQLSort.ofDesc());
+				sourceFilter = new JsonPrimitive(false);
+				return searchIndexName;
+			}, metrics);
+			Reader reader = performSearch(searchEndpoint(indexName), searchParams(), buildQuery(metrics), metrics);
+
+			HighlightResults<H> results = parseHighlightResponse(reader, metrics);
+			loadEntitiesMeasured(results.resultList, metrics);
+			List<E> entities = new ArrayList<>(results.resultList.size());
+			for (H result: results.resultList)
+				if (result.getEntity()!=null)
+					entities.add(result.getEntity());
+
+			return (P) buildPageableResult(getPageSize(pageable), pageable.getPage(), results.total, entities);
+		});
+	}
+
+	/**
+	 * Returns the cache key consisting of the endpoint with target indexes, request parameters and the query json with object keys
+	 * sorted, so that the same queries built in a different order share the cache entry.
+	 */
+	protected String queryCacheKey(String endpoint, Map<String, String> params, JsonObject query) {
+		StringBuilder key = new StringBuilder(endpoint).append(new TreeMap<>(params)).append('\n');
+		appendCanonicalJson(query, key);
+		return key.toString();
+	}
+
+	protected static void appendCanonicalJson(JsonElement element, StringBuilder sb) {
+		if (element.isJsonObject()) {
+			Map<String, JsonElement> sorted = new TreeMap<>();
+			element.getAsJsonObject().entrySet().forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<String, JsonElement> entry: sorted.entrySet()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				sb.append(new JsonPrimitive(entry.getKey())).append(':');
+				appendCanonicalJson(entry.getValue(), sb);
+			}
+			sb.append('}');
+		} else if (element.isJsonArray()) {
+			sb.append('[');
+			boolean first = true;
+			for (JsonElement item: element.getAsJsonArray()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				appendCanonicalJson(item, sb);
+			}
+			sb.append(']');
+		} else
+			sb.append(element);
+	}
+
+	/**
+	 * Returns entity types the query is executed for, or empty collection for the unlimited global search.
+	 */
+	protected Collection<Class<?>> queryCacheTypes() {
+		if (global && globalSearchClasses==null)
+			return Collections.emptyList();
+
+		List<Class<?>> types = new ArrayList<>();
+		for (Class<?> entityClass: global ? globalSearchClasses : Collections.singleton(context.getEntityClass()))
+			for (Class<?> c: loadEntityInfo(entityClass).allClasses)
+				types.add(c);
+		return types;
+	}
+
+	/**********************************************************************************************************
+	 * Timeout and cancellation support
+	 **********************************************************************************************************/
+
+	/**
+	 * Single daemon thread failing ES requests after their deadline, created on the first use.
+	 */
+	protected static class DeadlineScheduler {
+		protected static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "elasticsearch-deadline");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		static {
+			executor.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	@Nullable public Duration getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the server-side search timeout. When it's exceeded, ES returns hits collected so far and the page is
+	 * {@link ElasticSearchPage#isTimedOut() marked} as timed out. For {@code list()} it's applied with
+	 * {@link FullTextQuery#limitExecutionTimeTo(long, TimeUnit)}. Note, that ES checks the timeout only during collecting hits, so the
+	 * query can still take longer, what can be capped with {@link #withDeadline(Duration)}.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withTimeout(@Nullable Duration timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	@Nullable public Integer getTerminateAfter() {
+		return terminateAfter;
+	}
+
+	/**
+	 * Sets the maximum number of documents to collect on each shard, after which the query terminates early and the page is
+	 * {@link ElasticSearchPage#isTerminatedEarly() marked} as terminated early. The total count is then only the lower bound.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withTerminateAfter(@Nullable Integer terminateAfter) {
+		this.terminateAfter = terminateAfter;
+		return this;
+	}
+
+	@Nullable public Duration getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Sets the client-side deadline for each ES request executed with the low level client. After the deadline synchronous methods
+	 * throw {@link SearchException} caused by {@link TimeoutException}, and futures of asynchronous methods complete with
+	 * {@link TimeoutException}. The deadline should be longer than the {@link #withTimeout(Duration) timeout}, so that normally the
+	 * partial results are returned.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withDeadline(@Nullable Duration deadline) {
+		this.deadline = deadline;
+		return this;
+	}
+
+	@Nullable public ElasticSearchCancellation getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * Sets the handle to cancel ES requests of this builder.
+	 */
+	@Nonnull public HibernateSearchElasticFilterQueryBuilder<E, H, P, PH> withCancellation(@Nullable ElasticSearchCancellation cancellation) {
+		this.cancellation = cancellation;
+		return this;
+	}
+
+	/**
+	 * Returns the cancellation handle for the asynchronous request, so that cancelling the returned future cancels the ES request too.
+	 * This is the handle set with {@link #withCancellation(ElasticSearchCancellation)}, or a new handle used only by this request.
+	 */
+	@Nonnull protected ElasticSearchCancellation requestCancellation() {
+		return cancellation!=null ? cancellation : new ElasticSearchCancellation();
+	}
+
 	/**********************************************************************************************************
 	 * Other stuff
 	 **********************************************************************************************************/
@@ -752,6 +2525,29 @@ extends BaseHibernateSearchFilterQueryBuilder<E, P, HibernateSearchElasticQueryB
 		};
 	}
 
+	/**
+	 * Returns only these search fields, which are indexed in the target indexes, so that no dead clauses are sent to ES.
+	 */
+	protected Map<String, FieldSearchStrategy> existingSearchFields(Class<?> entityClass, Map<String, FieldSearchStrategy> fields) {
+		if (fields.isEmpty())
+			return fields;
+
+		SearchableEntityRegistry registry = entityRegistry();
+		int existing = 0;
+		for (String field: fields.keySet())
+			if (registry.isFieldIndexed(entityClass, field))
+				existing++;
+		if (existing==fields.size())
+			return fields;
+
+		Map<String, FieldSearchStrategy> existingFields = new LinkedHashMap<>();
+		fields.forEach((field, strategy) -> {
+			if (registry.isFieldIndexed(entityClass, field))
+				existingFields.put(field, strategy);
+		});
+		return existingFields;
+	}
+
 	protected EQLComponent createFieldQuery(FieldSearchStrategy strategy, String field, String query) {
 		switch (strategy) {
 			case DEFAULT:
@@ -0,0 +1,184 @@
+package com.lifeinide.jsonql.hibernate.search.elastic;
+
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder.SearchableEntityInfo;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.hibernate.search.SearchFactory;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.TwoWayFieldBridge;
+import org.hibernate.search.metadata.FieldDescriptor;
+import org.hibernate.search.metadata.IndexDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Registry of {@link SearchableEntityInfo} for all entities indexed within a single {@link EntityManagerFactory}. The registry is built
+ * eagerly from {@link SearchFactory#getIndexedTypes()} once per {@link EntityManagerFactory} and then only read, so that hot path
+ * lookups during processing search results (by the class or by the ES {@code _type} name) don't allocate nor lock anything.
+ *
+ * @author Lukasz Frankowski
+ */
+public class SearchableEntityRegistry {
+
+	public static final Logger logger = LoggerFactory.getLogger(SearchableEntityRegistry.class);
+
+	protected static final Map<EntityManagerFactory, SearchableEntityRegistry> registries = new ConcurrentHashMap<>();
+
+	protected final EntityManagerFactory entityManagerFactory;
+	protected final SearchFactory searchFactory;
+
+	/** Infos by entity class, contains all indexed classes and lazily added non-indexed superclasses of them **/
+	protected final Map<Class<?>, SearchableEntityInfo> byClass = new ConcurrentHashMap<>();
+
+	/** Infos by the entity type name, as returned in ES {@code _type} field, filled only in the constructor **/
+	protected final Map<String, SearchableEntityInfo> byTypeName;
+
+	/** Comma-joined names of all indexes of this {@link EntityManagerFactory}, ready to use in ES request path **/
+	protected final String globalIndexName;
+
+	/** Field bridges of the global search, like {@link SearchableEntityInfo#fieldBridges} for entity classes **/
+	protected final Map<String, Optional<FieldBridge>> globalFieldBridges = new ConcurrentHashMap<>();
+
+	protected SearchableEntityRegistry(@Nonnull EntityManagerFactory entityManagerFactory, @Nonnull SearchFactory searchFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.searchFactory = searchFactory;
+
+		Map<String, SearchableEntityInfo> typeNames = new HashMap<>();
+		Set<String> indexNames = new LinkedHashSet<>();
+		for (Class<?> indexedType: searchFactory.getIndexedTypes()) {
+			SearchableEntityInfo info = buildEntityInfo(indexedType);
+			byClass.put(indexedType, info);
+			typeNames.put(indexedType.getName(), info);
+			indexNames.addAll(info.indexNames);
+		}
+		byTypeName = Collections.unmodifiableMap(typeNames);
+		globalIndexName = String.join(",", indexNames);
+	}
+
+	/**
+	 * Returns the registry for given {@link EntityManagerFactory}, building it on the first call.
+	 */
+	@Nonnull public static SearchableEntityRegistry of(@Nonnull EntityManagerFactory entityManagerFactory,
+													   @Nonnull SearchFactory searchFactory) {
+		SearchableEntityRegistry registry = registries.get(entityManagerFactory);
+		if (registry!=null)
+			return registry;
+
+		// forget registries of closed factories, otherwise they would be kept here forever
+		registries.keySet().removeIf(emf -> !emf.isOpen());
+		return registries.computeIfAbsent(entityManagerFactory, emf -> new SearchableEntityRegistry(emf, searchFactory));
+	}
+
+	/**
+	 * Returns the entity info for given entity class. The class doesn't need to be indexed itself, but then at least one of its
+	 * subclasses needs to be.
+	 */
+	@Nonnull public SearchableEntityInfo get(@Nonnull Class<?> entityClass) {
+		SearchableEntityInfo info = byClass.get(entityClass);
+		if (info!=null)
+			return info;
+		return byClass.computeIfAbsent(entityClass, this::buildEntityInfo);
+	}
+
+	/**
+	 * Returns the entity info for given entity class name (ES {@code _type}) or {@code null} if there's no such entity indexed with
+	 * this {@link EntityManagerFactory}.
+	 */
+	@Nullable public SearchableEntityInfo get(@Nonnull String entityClassName) {
+		return byTypeName.get(entityClassName);
+	}
+
+	/**
+	 * Returns comma-joined names of all indexes of indexed entities, to be used for the global search instead of querying all indexes in
+	 * the cluster.
+	 */
+	@Nonnull public String getGlobalIndexName() {
+		return globalIndexName;
+	}
+
+	/**
+	 * Returns whether given field is indexed for given entity class or any of its indexed subclasses, according to Hibernate Search
+	 * metadata. For the global search use {@code Object.class}.
+	 */
+	public boolean isFieldIndexed(@Nonnull Class<?> entityClass, @Nonnull String field) {
+		return getFieldBridge(entityClass, field)!=null;
+	}
+
+	/**
+	 * Returns the field bridge of given field in the entity class or the first of its indexed subclasses having this field indexed, or
+	 * {@code null} if the field is not indexed. For the global search use {@code Object.class}. The result is computed once for each
+	 * entity class and field.
+	 */
+	@Nullable public FieldBridge getFieldBridge(@Nonnull Class<?> entityClass, @Nonnull String field) {
+		Map<String, Optional<FieldBridge>> fieldBridges = entityClass==Object.class ? globalFieldBridges : get(entityClass).fieldBridges;
+		Optional<FieldBridge> fieldBridge = fieldBridges.get(field);
+		if (fieldBridge==null) {
+			fieldBridge = Optional.ofNullable(findFieldBridge(entityClass, field));
+			fieldBridges.putIfAbsent(field, fieldBridge);
+		}
+		return fieldBridge.orElse(null);
+	}
+
+	protected FieldBridge findFieldBridge(Class<?> entityClass, String field) {
+		for (Class<?> c: searchFactory.getIndexedTypes())
+			if (entityClass.isAssignableFrom(c)) {
+				FieldDescriptor fieldDescriptor = searchFactory.getIndexedTypeDescriptor(c).getIndexedField(field);
+				if (fieldDescriptor!=null)
+					return fieldDescriptor.getFieldBridge();
+			}
+
+		logger.debug("Field: {} is not indexed for: {}", field, entityClass.getSimpleName());
+		return null;
+	}
+
+	protected SearchableEntityInfo buildEntityInfo(Class<?> entityClass) {
+		// find all subclasses for requested entity
+		List<Class> allClasses = new ArrayList<>();
+		for (Class<?> c: searchFactory.getIndexedTypes())
+			if (entityClass.isAssignableFrom(c))
+				allClasses.add(c);
+
+		if (allClasses.isEmpty())
+			throw new IllegalArgumentException(String.format("No indexed entities found for: %s", entityClass.getName()));
+
+		EntityType<?> entityType = entityManagerFactory.getMetamodel().entity(entityClass);
+		String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+
+		// and all indexes they are stored in
+		Set<String> indexNames = new LinkedHashSet<>();
+		for (Class<?> c: allClasses)
+			for (IndexDescriptor indexDescriptor: searchFactory.getIndexedTypeDescriptor(c).getIndexDescriptors())
+				indexNames.add(indexDescriptor.getName());
+
+		FieldBridge fieldBridge = searchFactory.getIndexedTypeDescriptor(allClasses.iterator().next()).getIndexedField(idName)
+			.getFieldBridge();
+
+		Function<String, Object> idConverter = null;
+		if (fieldBridge instanceof TwoWayFieldBridge) {
+			FieldType fieldType = new FieldType();
+			fieldType.setStored(true);
+			fieldType.freeze();
+			idConverter = id -> {
+				Document document = new Document();
+				document.add(new Field(idName, id, fieldType));
+				return ((TwoWayFieldBridge) fieldBridge).get(idName, document);
+			};
+		} else {
+			logger.warn("Cannot convert id for entity: {} and field bridge: {}. The entity won't be fetched from db.",
+				entityClass.getSimpleName(), fieldBridge);
+		}
+
+		return new SearchableEntityInfo(entityType, idName, idConverter, Collections.unmodifiableList(allClasses),
+			Collections.unmodifiableSet(indexNames));
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.bridge;
+
+import com.lifeinide.jsonql.core.filters.EntityQueryFilter;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.LuceneOptions;
+import org.hibernate.search.bridge.MetadataProvidingFieldBridge;
+import org.hibernate.search.bridge.spi.FieldMetadataBuilder;
+import org.hibernate.search.bridge.spi.FieldType;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * A variant of {@link BaseElasticDomainFieldBridge} for entities with numeric ids, which stores the associated entity id as ES
+ * {@code long} instead of {@code keyword}. Such ids are indexed as numeric points with doc values, so that {@link EntityQueryFilter}
+ * filters and {@link HibernateSearchElasticFilterQueryBuilder#addTerms(String, Collection)} filters by large sets of entities are
+ * cheaper to execute.
+ *
+ * @author Lukasz Frankowski
+ */
+public abstract class BaseElasticNumericDomainFieldBridge<E> implements MetadataProvidingFieldBridge {
+
+	public abstract Long getEntityId(E entity);
+
+	public abstract boolean isEntity(Object entity);
+
+	/**
+	 * Returns the id of given entity, or the id given directly as a number or a string.
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable public Long toId(@Nullable Object value) {
+		if (value==null)
+			return null;
+		if (isEntity(value))
+			return getEntityId((E) value);
+		if (value instanceof Number)
+			return ((Number) value).longValue();
+		return Long.valueOf(value.toString());
+	}
+
+	@Override
+	public void configureFieldMetadata(String name, FieldMetadataBuilder builder) {
+		builder.field(name, FieldType.LONG);
+	}
+
+	@Override
+	public void set(String name, Object value, Document document, LuceneOptions luceneOptions) {
+		Long id = toId(value);
+		if (id!=null)
+			luceneOptions.addNumericFieldToDocument(name, id, document);
+	}
+
+}
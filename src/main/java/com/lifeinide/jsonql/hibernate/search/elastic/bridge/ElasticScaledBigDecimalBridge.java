@@ -0,0 +1,80 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.bridge;
+
+import com.lifeinide.jsonql.core.filters.SingleValueQueryFilter;
+import com.lifeinide.jsonql.core.filters.ValueRangeQueryFilter;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+import org.hibernate.search.bridge.MetadataProvidingFieldBridge;
+import org.hibernate.search.bridge.ParameterizedBridge;
+import org.hibernate.search.bridge.spi.FieldMetadataBuilder;
+import org.hibernate.search.bridge.spi.FieldType;
+
+import javax.annotation.Nonnull;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+
+/**
+ * A {@link FieldBridge} storing {@link BigDecimal} values as ES {@code long} numbers with the fixed scale, so that the value
+ * {@code 12.34} with the scale {@code 2} is stored as {@code 1234}. Unlike {@link ElasticBigDecimalRangeBridge} the values are indexed
+ * as numeric points with doc values, so that {@link SingleValueQueryFilter} and {@link ValueRangeQueryFilter} filters and sorting run
+ * as numeric queries. {@link HibernateSearchElasticFilterQueryBuilder} converts the filter values to the scaled longs itself.
+ * <p>
+ * The scale is {@link #DEFAULT_SCALE} by default and can be changed with {@link #SCALE} parameter. Values with the greater scale are
+ * rounded {@link RoundingMode#HALF_UP} on indexing:
+ *
+ * <pre>{@code
+ * @Field(bridge = @FieldBridge(impl = ElasticScaledBigDecimalBridge.class,
+ * 	params = @Parameter(name = ElasticScaledBigDecimalBridge.SCALE, value = "4")))
+ * protected BigDecimal amount;
+ * }</pre>
+ * </p>
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder How to use this bridge in searchable entities
+ * @author Lukasz Frankowski
+ */
+public class ElasticScaledBigDecimalBridge implements MetadataProvidingFieldBridge, ParameterizedBridge {
+
+	public static final String SCALE = "scale";
+	public static final int DEFAULT_SCALE = 2;
+
+	protected int scale = DEFAULT_SCALE;
+
+	public int getScale() {
+		return scale;
+	}
+
+	@Override
+	public void setParameterValues(Map<String, String> parameters) {
+		String scale = parameters.get(SCALE);
+		if (scale!=null)
+			this.scale = Integer.parseInt(scale);
+	}
+
+	@Override
+	public void configureFieldMetadata(String name, FieldMetadataBuilder builder) {
+		builder.field(name, FieldType.LONG).sortable(true);
+	}
+
+	@Override
+	public void set(String name, Object value, Document document, LuceneOptions luceneOptions) {
+		if (value!=null)
+			luceneOptions.addNumericFieldToDocument(name, toScaledLong((BigDecimal) value, RoundingMode.HALF_UP), document);
+	}
+
+	/**
+	 * Converts the value to the scaled long, rounding it with given mode when it has the greater scale.
+	 *
+	 * @throws ArithmeticException If the scaled value is out of {@code long} range.
+	 */
+	public long toScaledLong(@Nonnull BigDecimal value, @Nonnull RoundingMode roundingMode) {
+		return value.setScale(scale, roundingMode).unscaledValue().longValueExact();
+	}
+
+	@Nonnull public BigDecimal fromScaledLong(long value) {
+		return BigDecimal.valueOf(value, scale);
+	}
+
+}
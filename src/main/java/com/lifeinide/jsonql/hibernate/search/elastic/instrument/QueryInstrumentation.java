@@ -0,0 +1,39 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.instrument;
+
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives metrics of queries executed by {@link HibernateSearchElasticFilterQueryBuilder}, to be passed to the metrics backend. All
+ * methods are called in the thread executing the phase and should return quickly. Default implementations do nothing.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withInstrumentation(QueryInstrumentation)
+ * @author Lukasz Frankowski
+ */
+public interface QueryInstrumentation {
+
+	QueryInstrumentation NONE = new QueryInstrumentation() {};
+
+	/**
+	 * Called after each phase of the query execution.
+	 */
+	default void onPhase(@Nonnull QueryMetrics metrics, @Nonnull QueryPhase phase, long nanos) {
+	}
+
+	/**
+	 * Called after the query execution with all metrics collected. Entities fetched lazily are reported later only with
+	 * {@link #onPhase(QueryMetrics, QueryPhase, long)}.
+	 */
+	default void onQuery(@Nonnull QueryMetrics metrics) {
+	}
+
+	/**
+	 * Called after the query execution when it took longer than the slow query threshold.
+	 *
+	 * @see HibernateSearchElasticFilterQueryBuilder#withSlowQueryThreshold(long)
+	 */
+	default void onSlowQuery(@Nonnull QueryMetrics metrics, @Nonnull String query) {
+	}
+
+}
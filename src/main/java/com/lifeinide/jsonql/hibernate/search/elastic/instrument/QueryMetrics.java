@@ -0,0 +1,131 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.instrument;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Metrics of a single query execution. Values not known for the executed operation are {@code -1}.
+ *
+ * @author Lukasz Frankowski
+ */
+public class QueryMetrics {
+
+	protected final String operation;
+	protected final Class<?> entityType;
+	protected final long startNanos = System.nanoTime();
+	protected final Map<QueryPhase, Long> phaseNanos = new EnumMap<>(QueryPhase.class);
+	protected long totalNanos = -1;
+	protected long took = -1;
+	protected long totalHits = -1;
+	protected long responseBytes = -1;
+	protected int hitCount = -1;
+	protected int hydratedCount = 0;
+	protected boolean cached = false;
+	protected String query;
+
+	public QueryMetrics(@Nonnull String operation, @Nonnull Class<?> entityType) {
+		this.operation = operation;
+		this.entityType = entityType;
+	}
+
+	/**
+	 * Adds the time to the phase, returning the time.
+	 */
+	public long addPhase(@Nonnull QueryPhase phase, long nanos) {
+		phaseNanos.merge(phase, nanos, Long::sum);
+		return nanos;
+	}
+
+	public void finish() {
+		totalNanos = System.nanoTime() - startNanos;
+	}
+
+	/** Executed operation, like {@code highlight}, {@code count} or {@code list} **/
+	@Nonnull public String getOperation() {
+		return operation;
+	}
+
+	/** Queried entity type, or {@link Object} for the global search **/
+	@Nonnull public Class<?> getEntityType() {
+		return entityType;
+	}
+
+	@Nonnull public Map<QueryPhase, Long> getPhaseNanos() {
+		return Collections.unmodifiableMap(phaseNanos);
+	}
+
+	public long getPhaseNanos(@Nonnull QueryPhase phase) {
+		return phaseNanos.getOrDefault(phase, 0L);
+	}
+
+	/** The whole execution time **/
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/** ES {@code took} in millis **/
+	public long getTook() {
+		return took;
+	}
+
+	public void setTook(long took) {
+		this.took = took;
+	}
+
+	public long getTotalHits() {
+		return totalHits;
+	}
+
+	public void setTotalHits(long totalHits) {
+		this.totalHits = totalHits;
+	}
+
+	/** The size of ES response, or {@code -1} if it's not known or the response was taken from the cache **/
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	public void setResponseBytes(long responseBytes) {
+		this.responseBytes = responseBytes;
+	}
+
+	/** The number of hits in the response **/
+	public int getHitCount() {
+		return hitCount;
+	}
+
+	public void setHitCount(int hitCount) {
+		this.hitCount = hitCount;
+	}
+
+	/** The number of entities fetched from the db **/
+	public int getHydratedCount() {
+		return hydratedCount;
+	}
+
+	public void addHydratedCount(int hydratedCount) {
+		this.hydratedCount += hydratedCount;
+	}
+
+	/** Whether the response was taken from the query cache **/
+	public boolean isCached() {
+		return cached;
+	}
+
+	public void setCached(boolean cached) {
+		this.cached = cached;
+	}
+
+	/** The query json sent to ES **/
+	@Nullable public String getQuery() {
+		return query;
+	}
+
+	public void setQuery(@Nullable String query) {
+		this.query = query;
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.instrument;
+
+/**
+ * Phases of the query execution measured by {@link QueryInstrumentation}.
+ *
+ * @author Lukasz Frankowski
+ */
+public enum QueryPhase {
+
+	/** Building the full text query in the builder constructor and preparing the query tree for the execution **/
+	BUILD,
+
+	/** Serializing the query tree to json **/
+	SERIALIZE,
+
+	/** ES round trip, until the whole response is received **/
+	HTTP,
+
+	/** Parsing the ES response **/
+	PARSE,
+
+	/** Fetching entities for results from the db **/
+	HYDRATE,
+
+	/**
+	 * The whole Hibernate Search query execution, which covers {@link #HTTP}, {@link #PARSE} and {@link #HYDRATE} phases not measurable
+	 * separately for {@code list()}.
+	 */
+	SEARCH
+
+}
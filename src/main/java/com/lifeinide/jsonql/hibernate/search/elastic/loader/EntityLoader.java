@@ -0,0 +1,33 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.loader;
+
+import com.lifeinide.jsonql.core.intr.Pageable;
+import com.lifeinide.jsonql.core.intr.Sortable;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+
+import javax.annotation.Nonnull;
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Strategy of fetching entities from the db for search results returned by
+ * {@link HibernateSearchElasticFilterQueryBuilder#highlight(Pageable, Sortable)} and other methods returning highlighted results. The
+ * default implementation is {@link MultiLoadEntityLoader}.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withEntityLoader(EntityLoader)
+ * @author Lukasz Frankowski
+ */
+public interface EntityLoader {
+
+	/**
+	 * Loads entities of given class.
+	 *
+	 * @param entityClass Entity class.
+	 * @param idName Name of the entity id attribute.
+	 * @param ids Ids of entities to load, already converted to the entity id type.
+	 * @return Loaded entities by their ids. Entities which don't exist in the db are omitted.
+	 */
+	@Nonnull <E> Map<Object, E> load(@Nonnull EntityManager entityManager, @Nonnull Class<E> entityClass, @Nonnull String idName,
+									 @Nonnull List<Object> ids);
+
+}
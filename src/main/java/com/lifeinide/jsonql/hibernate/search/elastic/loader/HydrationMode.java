@@ -0,0 +1,26 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.loader;
+
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchHighlightedResults;
+import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+
+/**
+ * Defines when entities for highlighted results are fetched from the db.
+ *
+ * @see HibernateSearchElasticFilterQueryBuilder#withHydrationMode(HydrationMode)
+ * @author Lukasz Frankowski
+ */
+public enum HydrationMode {
+
+	/** Entities are fetched together with search results **/
+	EAGER,
+
+	/**
+	 * Entities are fetched on the first {@link ElasticSearchHighlightedResults#getEntity()} call, at once for all results from the
+	 * same page. The entity manager needs to be still open then.
+	 */
+	LAZY,
+
+	/** Entities are never fetched, what is useful when only highlights, ids or source projections are used **/
+	NONE
+
+}
@@ -0,0 +1,101 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.loader;
+
+import org.hibernate.CacheMode;
+import org.hibernate.MultiIdentifierLoadAccess;
+import org.hibernate.Session;
+import org.hibernate.graph.GraphSemantic;
+import org.hibernate.graph.RootGraph;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * {@link EntityLoader} using Hibernate {@link Session#byMultipleIds(Class)} multi-load. Entities already present in the persistence
+ * context or in the second level cache are taken from there, and remaining ones are loaded from the db in batches of given size.
+ * Optionally, the named entity graph can be used as the fetch graph to load required associations at once.
+ *
+ * @author Lukasz Frankowski
+ */
+public class MultiLoadEntityLoader implements EntityLoader {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	protected int batchSize;
+	@Nullable protected String fetchGraph;
+
+	public MultiLoadEntityLoader() {
+		this(DEFAULT_BATCH_SIZE, null);
+	}
+
+	public MultiLoadEntityLoader(int batchSize) {
+		this(batchSize, null);
+	}
+
+	/**
+	 * @param batchSize Max number of ids in a single db query.
+	 * @param fetchGraph Name of the entity graph to be used as the fetch graph, if any.
+	 */
+	public MultiLoadEntityLoader(int batchSize, @Nullable String fetchGraph) {
+		this.batchSize = batchSize;
+		this.fetchGraph = fetchGraph;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Nonnull
+	@Override
+	public <E> Map<Object, E> load(@Nonnull EntityManager entityManager, @Nonnull Class<E> entityClass, @Nonnull String idName,
+								   @Nonnull List<Object> ids) {
+		Map<Object, E> result = new HashMap<>();
+
+		// entities present in the second level cache are loaded from there without hitting the db
+		List<Serializable> idsToLoad = new ArrayList<>(ids.size());
+		Cache cache = entityManager.getEntityManagerFactory().getCache();
+		for (Object id: ids) {
+			if (cache!=null && cache.contains(entityClass, id)) {
+				E entity = entityManager.find(entityClass, id);
+				if (entity!=null) {
+					result.put(id, entity);
+					continue;
+				}
+			}
+			idsToLoad.add((Serializable) id);
+		}
+
+		if (!idsToLoad.isEmpty()) {
+			MultiIdentifierLoadAccess<E> loadAccess = entityManager.unwrap(Session.class)
+				.byMultipleIds(entityClass)
+				.withBatchSize(batchSize)
+				.with(CacheMode.NORMAL)
+				.enableSessionCheck(true)
+				.enableOrderedReturn(true);
+			if (fetchGraph!=null)
+				loadAccess.with((RootGraph<E>) entityManager.getEntityGraph(fetchGraph), GraphSemantic.FETCH);
+
+			// ordered return gives entities at the same positions as their ids, with nulls for non-existing ones
+			List<E> entities = loadAccess.multiLoad(idsToLoad);
+			for (int i = 0; i < entities.size(); i++)
+				if (entities.get(i)!=null)
+					result.put(idsToLoad.get(i), entities.get(i));
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		MultiLoadEntityLoader that = (MultiLoadEntityLoader) o;
+		return batchSize == that.batchSize && Objects.equals(fetchGraph, that.fetchGraph);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(batchSize, fetchGraph);
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.loader;
+
+import javax.annotation.Nonnull;
+import javax.persistence.EntityManager;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * {@link EntityLoader} using JPQL {@code select e from Entity e where e.id in :idList} query, split into chunks of given size. Works
+ * with any JPA provider, but doesn't use the persistence context nor the second level cache to avoid hitting the db.
+ *
+ * @author Lukasz Frankowski
+ */
+public class QueryEntityLoader implements EntityLoader {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	protected int batchSize;
+
+	public QueryEntityLoader() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize Max number of ids in a single db query.
+	 */
+	public QueryEntityLoader(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@Nonnull
+	@Override
+	public <E> Map<Object, E> load(@Nonnull EntityManager entityManager, @Nonnull Class<E> entityClass, @Nonnull String idName,
+								   @Nonnull List<Object> ids) {
+		Map<Object, E> result = new HashMap<>();
+		String query = String.format("select e from %s e where e.%s in :idList",
+			entityManager.getMetamodel().entity(entityClass).getName(), idName);
+
+		for (int i = 0; i < ids.size(); i += batchSize)
+			entityManager.createQuery(query, entityClass)
+				.setParameter("idList", ids.subList(i, Math.min(ids.size(), i + batchSize)))
+				.getResultList()
+				.forEach(entity -> {
+					Object entityId = entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+					if (entityId!=null)
+						result.put(entityId, entity);
+				});
+
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		return batchSize == ((QueryEntityLoader) o).batchSize;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(batchSize);
+	}
+
+}
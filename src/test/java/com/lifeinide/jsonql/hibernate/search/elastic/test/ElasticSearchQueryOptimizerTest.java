@@ -0,0 +1,93 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchQueryOptimizer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchQueryOptimizerTest {
+
+	protected void assertOptimized(String expected, String query) {
+		JsonObject optimized = new ElasticSearchQueryOptimizer().optimize(new JsonParser().parse(query).getAsJsonObject());
+		Assertions.assertEquals(new JsonParser().parse(expected), optimized);
+	}
+
+	@Test
+	public void testFlattenBools() {
+		assertOptimized(
+			"{'query': {'bool': {'must': [{'match': {'text': 'x'}}], 'filter': [{'term': {'a': 1}}, {'term': {'b': 2}}]}}}",
+			"{'query': {'bool': {'must': [{'bool': {'should': [{'match': {'text': 'x'}}]}}], " +
+				"'filter': [{'bool': {'must': [{'bool': {'must': [{'term': {'a': 1}}]}}, {'term': {'b': 2}}]}}]}}}");
+
+		// empty bools
+		assertOptimized(
+			"{'query': {'bool': {'filter': [{'term': {'a': 1}}]}}}",
+			"{'query': {'bool': {'filter': [{'bool': {'must': [{'term': {'a': 1}}, {'bool': {}}]}}]}}}");
+	}
+
+	@Test
+	public void testKeepSemantics() {
+		// should clauses can't be hoisted
+		String query = "{'query': {'bool': {'filter': [{'bool': {'should': [{'term': {'a': 1}}], 'must': [{'term': {'b': 1}}]}}]}}}";
+		assertOptimized(query, query);
+
+		// hoisting must_not alone would make should clauses required
+		query = "{'query': {'bool': {'should': [{'match': {'text': 'x'}}], 'filter': [{'bool': {'must_not': [{'exists': {'field': 'f'}}]}}]}}}";
+		assertOptimized(query, query);
+
+		// minimum_should_match changes the bool semantics
+		query = "{'query': {'bool': {'filter': [{'bool': {'should': [{'term': {'a': 1}}, {'term': {'a': 2}}], 'minimum_should_match': 2}}]}}}";
+		assertOptimized(query, query);
+
+		// dropping the empty bool would make should clauses required
+		query = "{'query': {'bool': {'should': [{'match': {'text': 'x'}}], 'filter': [{'bool': {}}]}}}";
+		assertOptimized(query, query);
+		query = "{'query': {'bool': {'filter': [{'bool': {'should': [{'term': {'a': 1}}], 'must': [{'bool': {}}]}}]}}}";
+		assertOptimized(query, query);
+
+		// unless minimum_should_match is set explicitly
+		assertOptimized(
+			"{'query': {'bool': {'should': [{'match': {'text': 'x'}}], 'minimum_should_match': 0}}}",
+			"{'query': {'bool': {'should': [{'match': {'text': 'x'}}], 'filter': [{'bool': {}}], 'minimum_should_match': 0}}}");
+
+		// scoring clauses are not deduplicated
+		query = "{'query': {'bool': {'must': [{'match': {'text': 'x'}}, {'match': {'text': 'x'}}]}}}";
+		assertOptimized(query, query);
+	}
+
+	@Test
+	public void testCollapseTerms() {
+		assertOptimized(
+			"{'query': {'bool': {'filter': [{'terms': {'a': [1, 2, 3]}}]}}}",
+			"{'query': {'bool': {'filter': [{'bool': {'should': [{'term': {'a': 1}}, {'term': {'a': 2}}, {'term': {'a': {'value': 3}}}]}}]}}}");
+
+		assertOptimized(
+			"{'query': {'bool': {'filter': [{'term': {'b': 1}}], 'must_not': [{'terms': {'a': ['x', 'y']}}]}}}",
+			"{'query': {'bool': {'filter': [{'bool': {'must': [{'term': {'b': 1}}], " +
+				"'must_not': [{'term': {'a': 'x'}}, {'term': {'a': 'y'}}]}}]}}}");
+	}
+
+	@Test
+	public void testMergeRanges() {
+		assertOptimized(
+			"{'query': {'bool': {'filter': [{'range': {'a': {'gt': 1, 'lte': 50}}}, {'range': {'b': {'gte': 'now-1d'}}}]}}}",
+			"{'query': {'bool': {'filter': [{'bool': {'must': [{'range': {'a': {'gte': 1}}}, {'range': {'a': {'lte': 50}}}, " +
+				"{'range': {'a': {'gt': 1}}}, {'range': {'a': {'lte': 100}}}, {'range': {'b': {'gte': 'now-1d'}}}]}}]}}}");
+
+		// incomparable bounds are kept
+		String query = "{'query': {'bool': {'filter': [{'range': {'a': {'gte': 'now-1d'}}}, {'range': {'a': {'gte': 'now-2d'}}}]}}}";
+		assertOptimized(query, query);
+	}
+
+	@Test
+	public void testDropDuplicates() {
+		assertOptimized(
+			"{'query': {'bool': {'filter': [{'type': {'value': 'A'}}, {'term': {'a': 1}}]}}}",
+			"{'query': {'bool': {'filter': [{'type': {'value': 'A'}}, {'term': {'a': 1}}, {'type': {'value': 'A'}}]}}}");
+	}
+
+}
@@ -0,0 +1,186 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.test;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchResponseParser;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchResponseParser.Hit;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchResponseParser.SearchResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * @author Lukasz Frankowski
+ */
+public class ElasticSearchResponseParserTest {
+
+	/** Canned responses are written with single quotes for readability **/
+	protected SearchResponse parse(ElasticSearchResponseParser parser, String json, List<Hit> hits) {
+		try {
+			return parser.parse(new StringReader(json.replace('\'', '"')), hits::add);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Test
+	public void testTotal() {
+		List<Hit> hits = new ArrayList<>();
+
+		// ES 5/6
+		SearchResponse response = parse(new ElasticSearchResponseParser(), "{'hits': {'total': 12, 'max_score': 1.0, 'hits': []}}", hits);
+		Assertions.assertEquals(12, response.getTotal());
+
+		// ES 7
+		response = parse(new ElasticSearchResponseParser(),
+			"{'hits': {'total': {'relation': 'gte', 'value': 10000, 'other': {'x': [1]}}, 'hits': []}}", hits);
+		Assertions.assertEquals(10000, response.getTotal());
+		Assertions.assertTrue(hits.isEmpty());
+	}
+
+	@Test
+	public void testError() {
+		List<Hit> hits = new ArrayList<>();
+
+		SearchResponse response = parse(new ElasticSearchResponseParser(), "{'error': 'index_not_found', 'status': 404}", hits);
+		Assertions.assertEquals("index_not_found", response.getError());
+
+		response = parse(new ElasticSearchResponseParser(), "{'error': {'root_cause': [{'type': 'x', 'reason': 'y'}], " +
+			"'type': 'search_phase_execution_exception', 'reason': 'all shards failed', 'phase': 'query'}, 'status': 400}", hits);
+		Assertions.assertEquals("search_phase_execution_exception: all shards failed", response.getError());
+		Assertions.assertEquals(0, response.getTotal());
+
+		response = parse(new ElasticSearchResponseParser(), "{'took': 1, 'hits': {'total': 0, 'hits': []}}", hits);
+		Assertions.assertNull(response.getError());
+	}
+
+	@Test
+	public void testResponseMetadata() {
+		List<Hit> hits = new ArrayList<>();
+
+		SearchResponse response = parse(new ElasticSearchResponseParser(), "{'took': 17, 'timed_out': true, 'terminated_early': true, " +
+			"'_shards': {'total': 5, 'successful': 3, 'skipped': 0, 'failed': 2, 'failures': [{'shard': 1, 'reason': {'type': 'x'}}]}, " +
+			"'_scroll_id': 'DXF1ZXJ5', 'profile': {'shards': [{'id': 'a', 'searches': [{'query': []}]}]}, " +
+			"'hits': {'total': 1, 'hits': [{'_id': '1'}]}, " +
+			"'aggregations': {'longVal': {'buckets': [{'key': 1, 'doc_count': 2}]}}}", hits);
+
+		Assertions.assertEquals(17, response.getTook());
+		Assertions.assertTrue(response.isTimedOut());
+		Assertions.assertTrue(response.isTerminatedEarly());
+		Assertions.assertEquals(2, response.getFailedShards());
+		Assertions.assertEquals("DXF1ZXJ5", response.getScrollId());
+		Assertions.assertEquals(1, response.getTotal());
+		Assertions.assertEquals(1, hits.size());
+		Assertions.assertEquals(new JsonParser().parse("{'longVal': {'buckets': [{'key': 1, 'doc_count': 2}]}}"),
+			response.getAggregations());
+
+		// defaults for missing fields
+		response = parse(new ElasticSearchResponseParser(), "{}", hits);
+		Assertions.assertEquals(0, response.getTook());
+		Assertions.assertFalse(response.isTimedOut());
+		Assertions.assertFalse(response.isTerminatedEarly());
+		Assertions.assertEquals(0, response.getFailedShards());
+		Assertions.assertNull(response.getScrollId());
+		Assertions.assertNull(response.getAggregations());
+	}
+
+	@Test
+	public void testHits() {
+		List<Hit> hits = new ArrayList<>();
+		ElasticSearchResponseParser parser = new ElasticSearchResponseParser(new HashSet<>(Arrays.asList("a", "b", "c", "d")));
+
+		parse(parser, "{'hits': {'total': 3, 'hits': [" +
+			"{'_index': 'idx', '_type': 'Entity', '_id': '1', '_score': 1.5, '_routing': {'x': ['y']}, " +
+				"'highlight': {'text': ['<em>a</em>', null, ['<em>b</em>', [null, '<em>c</em>']]], 'other': '<em>d</em>'}, " +
+				"'_source': {'a': 'x', 'b': [1, null, [2.5, true]], 'c': null, 'd': {'nested': 'skipped'}, 'e': 'not requested'}, " +
+				"'sort': [1.5, 'x']}, " +
+			"{'_type': 'Entity', '_id': '2', '_score': null, 'highlight': {}, '_source': null}, " +
+			"{'_id': '3', 'fields': {'a': ['y']}, 'inner_hits': {'x': {'hits': {'total': 1, 'hits': [{'_id': '4'}]}}}}" +
+			"]}}", hits);
+
+		Assertions.assertEquals(3, hits.size());
+
+		Hit hit = hits.get(0);
+		Assertions.assertEquals("1", hit.getId());
+		Assertions.assertEquals("Entity", hit.getType());
+		Assertions.assertEquals(1.5, hit.getScore());
+		Assertions.assertEquals(Arrays.asList("<em>a</em>", "<em>b</em>", "<em>c</em>", "<em>d</em>"), hit.getHighlights());
+		Assertions.assertEquals(Arrays.asList("x"), hit.getSource().get("a"));
+		Assertions.assertEquals(Arrays.asList("1", "2.5", "true"), hit.getSource().get("b"));
+		Assertions.assertEquals(Collections.emptyList(), hit.getSource().get("c"));
+		Assertions.assertEquals(Collections.emptyList(), hit.getSource().get("d"));
+		Assertions.assertFalse(hit.getSource().containsKey("e"));
+		Assertions.assertEquals(new JsonParser().parse("[1.5, 'x']"), hit.getSortValues());
+		Assertions.assertNull(hit.getRawSource());
+
+		// null score and null source
+		hit = hits.get(1);
+		Assertions.assertEquals("2", hit.getId());
+		Assertions.assertEquals(0.0, hit.getScore());
+		Assertions.assertEquals(Collections.emptyList(), hit.getHighlights());
+		Assertions.assertNull(hit.getSource());
+		Assertions.assertNull(hit.getSortValues());
+
+		// unknown fields skipped, including nested hits
+		hit = hits.get(2);
+		Assertions.assertEquals("3", hit.getId());
+		Assertions.assertNull(hit.getType());
+		Assertions.assertNull(hit.getHighlights());
+		Assertions.assertNull(hit.getSource());
+	}
+
+	@Test
+	public void testSourceFields() {
+		String json = "{'hits': {'total': 1, 'hits': [{'_id': '1', '_source': {'a': ['x', null, ['y']], 'b': {'c': 1}}}]}}";
+
+		// no source fields requested
+		List<Hit> hits = new ArrayList<>();
+		parse(new ElasticSearchResponseParser(), json, hits);
+		Assertions.assertNull(hits.get(0).getSource());
+		Assertions.assertNull(hits.get(0).getRawSource());
+
+		// raw source
+		hits.clear();
+		parse(new ElasticSearchResponseParser(Collections.singleton("a"), true), json, hits);
+		Assertions.assertEquals(new JsonParser().parse("{'a': ['x', null, ['y']], 'b': {'c': 1}}"), hits.get(0).getRawSource());
+		Assertions.assertEquals(Collections.singletonMap("a", Arrays.asList("x", "y")), hits.get(0).getSource());
+
+		// raw source without source fields
+		hits.clear();
+		parse(new ElasticSearchResponseParser(Collections.emptySet(), true), json, hits);
+		Assertions.assertNotNull(hits.get(0).getRawSource());
+		Assertions.assertNull(hits.get(0).getSource());
+	}
+
+	@Test
+	public void testParseFromReaderPosition() throws IOException {
+		// like in _msearch, where responses are elements of an array
+		JsonReader reader = new JsonReader(new StringReader(("{'responses': [{'hits': {'total': 1, 'hits': [{'_id': '1'}]}}, " +
+			"{'error': {'type': 'x', 'reason': 'y'}}, {'hits': {'total': {'value': 2}, 'hits': []}}]}").replace('\'', '"')));
+		List<SearchResponse> responses = new ArrayList<>();
+		List<Hit> hits = new ArrayList<>();
+
+		reader.beginObject();
+		reader.nextName();
+		reader.beginArray();
+		while (reader.hasNext())
+			responses.add(new ElasticSearchResponseParser().parse(reader, hits::add));
+		reader.endArray();
+		reader.endObject();
+
+		Assertions.assertEquals(3, responses.size());
+		Assertions.assertEquals(1, responses.get(0).getTotal());
+		Assertions.assertEquals("x: y", responses.get(1).getError());
+		Assertions.assertEquals(2, responses.get(2).getTotal());
+		Assertions.assertEquals(1, hits.size());
+	}
+
+}
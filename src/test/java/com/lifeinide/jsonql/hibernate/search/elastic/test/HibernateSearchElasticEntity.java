@@ -5,6 +5,7 @@ import com.lifeinide.jsonql.core.test.IJsonQLTestParentEntity;
 import com.lifeinide.jsonql.core.test.JsonQLTestEntityEnum;
 import com.lifeinide.jsonql.hibernate.search.HibernateSearch;
 import com.lifeinide.jsonql.hibernate.search.elastic.bridge.ElasticBigDecimalRangeBridge;
+import com.lifeinide.jsonql.hibernate.search.elastic.bridge.ElasticScaledBigDecimalBridge;
 import org.hibernate.search.annotations.*;
 
 import javax.persistence.*;
@@ -18,6 +19,9 @@ import java.time.LocalDate;
  * {
  *     "dynamic": "strict",
  *     "properties": {
+ *         "amountVal": {
+ *             "type": "long"
+ *         },
  *         "booleanVal": {
  *             "type": "boolean"
  *         },
@@ -31,6 +35,9 @@ import java.time.LocalDate;
  *         "entityVal": {
  *             "type": "keyword"
  *         },
+ *         "entityValId": {
+ *             "type": "long"
+ *         },
  *         "enumVal": {
  *             "type": "keyword"
  *         },
@@ -55,8 +62,11 @@ import java.time.LocalDate;
  */
 @Entity
 @Indexed(index = "hibernatesearchelasticentity")
+@NamedEntityGraph(name = HibernateSearchElasticEntity.ENTITY_VAL_GRAPH, attributeNodes = @NamedAttributeNode("entityVal"))
 public class HibernateSearchElasticEntity implements IJsonQLTestEntity<Long>, IJsonQLTestParentEntity<Long, HibernateSearchElasticAssociatedEntity> {
 
+	public static final String ENTITY_VAL_GRAPH = "HibernateSearchElasticEntity.entityVal";
+
 	@Id private Long id;
 
 	@Field(name = HibernateSearch.FIELD_TEXT)
@@ -78,6 +88,10 @@ public class HibernateSearchElasticEntity implements IJsonQLTestEntity<Long>, IJ
 	@FieldBridge(impl = ElasticBigDecimalRangeBridge.class)
 	protected BigDecimal decimalVal;
 
+	@Field(analyze = Analyze.NO, norms = Norms.NO)
+	@FieldBridge(impl = ElasticScaledBigDecimalBridge.class)
+	protected BigDecimal amountVal;
+
 	@Field(analyze = Analyze.NO, norms = Norms.NO)
 	protected LocalDate dateVal;
 
@@ -86,8 +100,10 @@ public class HibernateSearchElasticEntity implements IJsonQLTestEntity<Long>, IJ
 	protected JsonQLTestEntityEnum enumVal;
 
 	@ManyToOne
-	@Field(analyze = Analyze.NO, norms = Norms.NO)
-	@FieldBridge(impl = DomainFieldBridge.class)
+	@Fields({
+		@Field(analyze = Analyze.NO, norms = Norms.NO, bridge = @FieldBridge(impl = DomainFieldBridge.class)),
+		@Field(name = "entityValId", analyze = Analyze.NO, norms = Norms.NO, bridge = @FieldBridge(impl = NumericDomainFieldBridge.class))
+	})
 	protected HibernateSearchElasticAssociatedEntity entityVal;
 
 	public HibernateSearchElasticEntity() {
@@ -155,6 +171,14 @@ public class HibernateSearchElasticEntity implements IJsonQLTestEntity<Long>, IJ
 		this.decimalVal = decimalVal;
 	}
 
+	public BigDecimal getAmountVal() {
+		return amountVal;
+	}
+
+	public void setAmountVal(BigDecimal amountVal) {
+		this.amountVal = amountVal;
+	}
+
 	@Override
 	public LocalDate getDateVal() {
 		return dateVal;
@@ -1,16 +1,52 @@
 package com.lifeinide.jsonql.hibernate.search.elastic.test;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 import com.lifeinide.jsonql.core.dto.BasePageableRequest;
 import com.lifeinide.jsonql.core.dto.Page;
+import com.lifeinide.jsonql.core.enums.QueryCondition;
+import com.lifeinide.jsonql.core.enums.QueryConjunction;
+import com.lifeinide.jsonql.core.filters.DateRangeQueryFilter;
+import com.lifeinide.jsonql.core.filters.EntityQueryFilter;
+import com.lifeinide.jsonql.core.filters.ListQueryFilter;
+import com.lifeinide.jsonql.core.filters.QueryFilter;
 import com.lifeinide.jsonql.core.filters.SingleValueQueryFilter;
+import com.lifeinide.jsonql.core.filters.ValueRangeQueryFilter;
 import com.lifeinide.jsonql.core.intr.Pageable;
+import com.lifeinide.jsonql.core.intr.SortField;
 import com.lifeinide.jsonql.core.intr.Sortable;
 import com.lifeinide.jsonql.core.test.IJsonQLBaseTestEntity;
 import com.lifeinide.jsonql.core.test.JsonQLBaseQueryBuilderTest;
 import com.lifeinide.jsonql.hibernate.search.FieldSearchStrategy;
+import com.lifeinide.jsonql.hibernate.search.HibernateSearch;
 import com.lifeinide.jsonql.hibernate.search.elastic.DefaultHibernateSearchElasticFilterQueryBuilder;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchCancellation;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchFacet;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchFacetedResults;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchHighlightOptions;
 import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchHighlightedResults;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchMultiSearch;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchPage;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchQueryCache;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchResponseParser;
+import com.lifeinide.jsonql.hibernate.search.elastic.ElasticSearchTermsLookup;
 import com.lifeinide.jsonql.hibernate.search.elastic.HibernateSearchElasticFilterQueryBuilder;
+import com.lifeinide.jsonql.hibernate.search.elastic.SearchableEntityRegistry;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryInstrumentation;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryMetrics;
+import com.lifeinide.jsonql.hibernate.search.elastic.instrument.QueryPhase;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.EntityLoader;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.HydrationMode;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.MultiLoadEntityLoader;
+import com.lifeinide.jsonql.hibernate.search.elastic.loader.QueryEntityLoader;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Response;
+import org.hibernate.SessionFactory;
+import org.hibernate.search.exception.SearchException;
+import org.hibernate.search.jpa.Search;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
@@ -22,9 +58,33 @@ import javax.annotation.Nullable;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Lukasz Frankowski
@@ -63,7 +123,9 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 	@Nonnull
 	@Override
 	protected HibernateSearchElasticEntity buildEntity(Long previousId) {
-		return new HibernateSearchElasticEntity(previousId==null ? 1L : previousId+1);
+		HibernateSearchElasticEntity entity = new HibernateSearchElasticEntity(previousId==null ? 1L : previousId+1);
+		entity.setAmountVal(BigDecimal.valueOf(entity.getId(), 2));
+		return entity;
 	}
 
 	@Override
@@ -98,6 +160,163 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 			qb = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART);
 			page = qb.list();
 			Assertions.assertEquals(101, page.getCount());
+
+			Assertions.assertEquals(100, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				SEARCHABLE_STRING_PART).count());
+			Assertions.assertEquals(101, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART).count());
+
+			// global search limited to some entities
+			Assertions.assertEquals(1, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART)
+				.withGlobalSearchClasses(HibernateSearchElasticAssociatedEntity.class).count());
+			Assertions.assertEquals(101, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART)
+				.withGlobalSearchClasses(HibernateSearchElasticAssociatedEntity.class, HibernateSearchElasticEntity.class)
+				.highlight().getCount());
+		});
+	}
+
+	@Test
+	public void testGlobalSearchClasses() {
+		doWithEntityManager(em -> {
+			// only indexes and types of given classes are searched
+			RequestRecordingQueryBuilder<Object> qb = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			qb.withGlobalSearchClasses(HibernateSearchElasticAssociatedEntity.class);
+			Page<ElasticSearchHighlightedResults<Object>> results = qb.highlight(BasePageableRequest.ofDefault().withPageSize(200));
+			Assertions.assertEquals(1, results.getCount());
+			results.getData().forEach(it -> Assertions.assertTrue(it.getEntity() instanceof HibernateSearchElasticAssociatedEntity));
+			Assertions.assertEquals(Collections.singletonList("/hibernatesearchelasticassociatedentity/_search"), qb.endpoints);
+
+			qb = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			qb.withGlobalSearchClasses(HibernateSearchElasticEntity.class);
+			results = qb.highlight(BasePageableRequest.ofDefault().withPageSize(200));
+			Assertions.assertEquals(100, results.getCount());
+			Assertions.assertEquals(100, results.getData().size());
+			results.getData().forEach(it -> Assertions.assertTrue(it.getEntity() instanceof HibernateSearchElasticEntity));
+			Assertions.assertEquals(Collections.singletonList("/hibernatesearchelasticentity/_search"), qb.endpoints);
+		});
+	}
+
+	@Test
+	public void testIgnoreUnavailable() {
+		doWithEntityManager(em -> {
+			// ignored by default only for the global search
+			RequestRecordingQueryBuilder<Object> global = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			global.highlight();
+			global.count();
+			Assertions.assertEquals(2, global.params.size());
+			global.params.forEach(it -> Assertions.assertEquals("true", it.get("ignore_unavailable")));
+
+			RequestRecordingQueryBuilder<HibernateSearchElasticEntity> local =
+				new RequestRecordingQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING_PART);
+			local.highlight();
+			local.count();
+			Assertions.assertEquals(2, local.params.size());
+			local.params.forEach(it -> Assertions.assertFalse(it.containsKey("ignore_unavailable")));
+
+			// explicitly set
+			local = new RequestRecordingQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING_PART);
+			local.withIgnoreUnavailable(true).count();
+			Assertions.assertEquals("true", local.params.get(0).get("ignore_unavailable"));
+
+			global = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			global.withIgnoreUnavailable(false).count();
+			Assertions.assertFalse(global.params.get(0).containsKey("ignore_unavailable"));
+
+			// and in the multi search header
+			List<QueryMetrics> queries = new ArrayList<>();
+			ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+			multiSearch.count(new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART)
+				.withInstrumentation(new QueryInstrumentation() {
+					@Override
+					public void onQuery(@Nonnull QueryMetrics metrics) {
+						queries.add(metrics);
+					}
+				}));
+			multiSearch.count(new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				SEARCHABLE_STRING_PART));
+			multiSearch.execute();
+			String[] lines = queries.get(0).getQuery().split("\n");
+			Assertions.assertTrue(new JsonParser().parse(lines[0]).getAsJsonObject().get("ignore_unavailable").getAsBoolean());
+			Assertions.assertFalse(new JsonParser().parse(lines[2]).getAsJsonObject().has("ignore_unavailable"));
+		});
+	}
+
+	@Test
+	public void testCount() {
+		doWithEntityManager(em -> {
+			String globalIndexName = SearchableEntityRegistry.of(entityManagerFactory,
+				Search.getFullTextEntityManager(em).getSearchFactory()).getGlobalIndexName();
+
+			// the global search counts in all indexes of indexed entities
+			RequestRecordingQueryBuilder<Object> global = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			Assertions.assertEquals(101, global.count());
+			Assertions.assertEquals(Collections.singletonList(String.format("/%s/_count", globalIndexName)), global.endpoints);
+			RequestRecordingQueryBuilder<Object> globalAsync = new RequestRecordingQueryBuilder<>(em, SEARCHABLE_STRING_PART);
+			Assertions.assertEquals(101L, (long) globalAsync.countAsync().join());
+			Assertions.assertEquals(global.endpoints, globalAsync.endpoints);
+
+			// while the entity search counts in the entity index only
+			RequestRecordingQueryBuilder<HibernateSearchElasticEntity> local =
+				new RequestRecordingQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING_PART);
+			Assertions.assertEquals(100, local.count());
+			Assertions.assertEquals(Collections.singletonList("/hibernatesearchelasticentity/_count"), local.endpoints);
+
+			// filters in _count request give the same count as in the search request
+			Consumer<DefaultHibernateSearchElasticFilterQueryBuilder<?>> filters = qb -> qb
+				.add("booleanVal", SingleValueQueryFilter.of(true))
+				.add("amountVal", ValueRangeQueryFilter.of(new BigDecimal("0.10"), new BigDecimal("0.60")));
+			for (Function<EntityManager, DefaultHibernateSearchElasticFilterQueryBuilder<?>> builder: Arrays.<Function<EntityManager,
+					DefaultHibernateSearchElasticFilterQueryBuilder<?>>>asList(
+				it -> new DefaultHibernateSearchElasticFilterQueryBuilder<>(it, HibernateSearchElasticEntity.class, SEARCHABLE_STRING_PART),
+				it -> new DefaultHibernateSearchElasticFilterQueryBuilder<>(it, SEARCHABLE_STRING_PART))) {
+				DefaultHibernateSearchElasticFilterQueryBuilder<?> highlightQb = builder.apply(em);
+				filters.accept(highlightQb);
+				long expected = highlightQb.highlight().getCount();
+				Assertions.assertTrue(expected > 0 && expected < 100);
+
+				DefaultHibernateSearchElasticFilterQueryBuilder<?> countQb = builder.apply(em);
+				filters.accept(countQb);
+				Assertions.assertEquals(expected, countQb.count());
+				DefaultHibernateSearchElasticFilterQueryBuilder<?> countAsyncQb = builder.apply(em);
+				filters.accept(countAsyncQb);
+				Assertions.assertEquals(expected, (long) countAsyncQb.countAsync().join());
+			}
+		});
+	}
+
+	@Test
+	public void testEntityRegistry() {
+		doWithEntityManager(em -> {
+			SearchableEntityRegistry registry = SearchableEntityRegistry.of(entityManagerFactory,
+				Search.getFullTextEntityManager(em).getSearchFactory());
+			Assertions.assertSame(registry, SearchableEntityRegistry.of(entityManagerFactory,
+				Search.getFullTextEntityManager(em).getSearchFactory()));
+
+			// lookups by class and by ES _type name give the same info
+			Assertions.assertSame(registry.get(HibernateSearchElasticEntity.class),
+				registry.get(HibernateSearchElasticEntity.class.getName()));
+			Assertions.assertSame(registry.get(HibernateSearchElasticAssociatedEntity.class),
+				registry.get(HibernateSearchElasticAssociatedEntity.class.getName()));
+			Assertions.assertNotSame(registry.get(HibernateSearchElasticEntity.class),
+				registry.get(HibernateSearchElasticAssociatedEntity.class));
+			Assertions.assertNull(registry.get(String.class.getName()));
+
+			Assertions.assertEquals(new HashSet<>(Arrays.asList("hibernatesearchelasticentity", "hibernatesearchelasticassociatedentity")),
+				new HashSet<>(Arrays.asList(registry.getGlobalIndexName().split(","))));
+
+			IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> registry.get(String.class));
+			Assertions.assertEquals("No indexed entities found for: java.lang.String", e.getMessage());
+
+			// field lookups are cached per entity class, and the global search sees fields of all entities
+			Assertions.assertNotNull(registry.getFieldBridge(HibernateSearchElasticEntity.class, "entityVal"));
+			Assertions.assertSame(registry.getFieldBridge(HibernateSearchElasticEntity.class, "entityVal"),
+				registry.getFieldBridge(HibernateSearchElasticEntity.class, "entityVal"));
+			Assertions.assertNull(registry.getFieldBridge(HibernateSearchElasticEntity.class, "unknownVal"));
+			Assertions.assertTrue(registry.isFieldIndexed(HibernateSearchElasticEntity.class, "longVal"));
+			Assertions.assertFalse(registry.isFieldIndexed(HibernateSearchElasticAssociatedEntity.class, "longVal"));
+			Assertions.assertTrue(registry.isFieldIndexed(HibernateSearchElasticAssociatedEntity.class, HibernateSearch.FIELD_TEXT));
+			Assertions.assertTrue(registry.isFieldIndexed(Object.class, "longVal"));
+			Assertions.assertTrue(registry.isFieldIndexed(Object.class, HibernateSearch.FIELD_TEXT));
+			Assertions.assertFalse(registry.isFieldIndexed(Object.class, "unknownVal"));
 		});
 	}
 
@@ -158,6 +377,320 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 		});
 	}
 
+	@Test
+	public void testHighlightAsync() {
+		doWithEntityManager(em -> {
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+					.highlightAsync(BasePageableRequest.ofDefault().withPageSize(20), null, Runnable::run)
+					.join();
+			Assertions.assertEquals(100, results.getCount());
+			Assertions.assertEquals(20, results.getData().size());
+			results.getData().forEach(it -> {
+				Assertions.assertEquals(HIGHLIGHTED_SEARCHABLE_STRING, it.getHighlight());
+				Assertions.assertNotNull(it.getEntity());
+			});
+
+			Assertions.assertEquals(100L, (long) new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).countAsync().join());
+			Assertions.assertEquals(101L, (long) new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				SEARCHABLE_STRING).countAsync().join());
+		});
+	}
+
+	@Test
+	public void testMultiSearch() {
+		doWithEntityManager(em -> {
+			ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> entities = multiSearch.highlight(
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING),
+				BasePageableRequest.ofDefault().withPageSize(20));
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticAssociatedEntity>>> associated = multiSearch.highlight(
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticAssociatedEntity.class, SEARCHABLE_STRING),
+				BasePageableRequest.ofDefault().withPageSize(20));
+			CompletableFuture<Long> count = multiSearch.count(new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, null)
+				.add("booleanVal", SingleValueQueryFilter.of(true)));
+			multiSearch.execute();
+
+			Assertions.assertEquals(100, entities.join().getCount());
+			Assertions.assertEquals(20, entities.join().getData().size());
+			entities.join().getData().forEach(it -> Assertions.assertNotNull(it.getEntity()));
+			Assertions.assertEquals(1, associated.join().getCount());
+			associated.join().getData().forEach(it -> Assertions.assertNotNull(it.getEntity()));
+			Assertions.assertEquals(50L, (long) count.join());
+		});
+	}
+
+	@Test
+	public void testMultiSearchExecution() {
+		List<QueryMetrics> queries = Collections.synchronizedList(new ArrayList<>());
+		List<Class<?>> loadedClasses = Collections.synchronizedList(new ArrayList<>());
+		EntityLoader entityLoader = new QueryEntityLoader() {
+			@Nonnull
+			@Override
+			public <E> Map<Object, E> load(@Nonnull EntityManager entityManager, @Nonnull Class<E> entityClass, @Nonnull String idName,
+										   @Nonnull List<Object> ids) {
+				loadedClasses.add(entityClass);
+				return super.load(entityManager, entityClass, idName, ids);
+			}
+		};
+
+		doWithEntityManager(em -> {
+			ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> executor =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			executor.withInstrumentation(new QueryInstrumentation() {
+				@Override
+				public void onQuery(@Nonnull QueryMetrics metrics) {
+					queries.add(metrics);
+				}
+			});
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> entities =
+				multiSearch.highlight(executor, BasePageableRequest.ofDefault().withPageSize(20));
+
+			// the failure in the middle of the response doesn't break parsing of next responses
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> failed = multiSearch.highlight(
+				new DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity>(em, HibernateSearchElasticEntity.class,
+						SEARCHABLE_STRING) {
+					@Override
+					protected ElasticSearchHighlightedResults<HibernateSearchElasticEntity> buildHighlight(ElasticSearchResponseParser.Hit hit) {
+						throw new IllegalStateException("Unparseable hit");
+					}
+				}, BasePageableRequest.ofDefault().withPageSize(20));
+
+			// entities are loaded by the loader of the query builder
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticAssociatedEntity> associatedBuilder =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticAssociatedEntity.class, SEARCHABLE_STRING);
+			associatedBuilder.withEntityLoader(entityLoader);
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticAssociatedEntity>>> associated =
+				multiSearch.highlight(associatedBuilder, BasePageableRequest.ofDefault().withPageSize(20));
+			CompletableFuture<Long> count = multiSearch.count(new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, null)
+				.add("booleanVal", SingleValueQueryFilter.of(true)));
+			multiSearch.execute();
+
+			Assertions.assertEquals(20, entities.join().getData().size());
+			entities.join().getData().forEach(it -> Assertions.assertNotNull(it.getEntity()));
+			Assertions.assertTrue(failed.isCompletedExceptionally());
+			Assertions.assertEquals(1, associated.join().getCount());
+			associated.join().getData().forEach(it -> Assertions.assertNotNull(it.getEntity()));
+			Assertions.assertEquals(Collections.singletonList(HibernateSearchElasticAssociatedEntity.class), loadedClasses);
+			Assertions.assertEquals(50L, (long) count.join());
+		});
+
+		// the request is executed and measured by the first builder
+		Assertions.assertEquals(1, queries.size());
+		QueryMetrics metrics = queries.get(0);
+		Assertions.assertEquals("multiSearch", metrics.getOperation());
+		Assertions.assertTrue(metrics.getPhaseNanos(QueryPhase.HTTP) > 0);
+		Assertions.assertEquals(21, metrics.getHydratedCount());
+		Assertions.assertNotNull(metrics.getQuery());
+
+		// with the deadline of the first builder the whole request fails
+		doWithEntityManager(em -> {
+			ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> executor =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			executor.withDeadline(Duration.ofNanos(1));
+			CompletableFuture<Long> count = multiSearch.count(executor);
+			Assertions.assertThrows(SearchException.class, multiSearch::execute);
+			Assertions.assertTrue(count.isCompletedExceptionally());
+		});
+	}
+
+	@Test
+	public void testHighlightAfter() {
+		doWithEntityManager(em -> {
+			Set<String> ids = new HashSet<>();
+			String cursor = null;
+			for (int i = 0; i < 4; i++) {
+				Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results =
+					new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+						.highlightAfter(cursor, 30);
+				Assertions.assertEquals(100, results.getCount());
+				Assertions.assertEquals(i < 3 ? 30 : 10, results.getData().size());
+				results.getData().forEach(it -> {
+					Assertions.assertNotNull(it.getEntity());
+					Assertions.assertTrue(ids.add(it.getId()));
+				});
+				cursor = results.getData().get(results.getData().size()-1).getCursor();
+			}
+			Assertions.assertEquals(100, ids.size());
+		});
+	}
+
+	@Test
+	public void testHydrationModes() {
+		// lazy loading
+		doTest((em, qb) -> {
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = qb
+				.withHydrationMode(HydrationMode.LAZY)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(20, results.getData().size());
+			results.getData().forEach(it -> Assertions.assertEquals(it.getEntity().getId().toString(), it.getId()));
+		});
+
+		// projection without loading
+		doTest((em, qb) -> {
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = qb
+				.withSourceProjection(EntityProjection.class)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(20, results.getData().size());
+			results.getData().forEach(it -> {
+				Assertions.assertNull(it.getEntity());
+				Assertions.assertNotNull(it.<EntityProjection>getProjection().stringVal);
+			});
+		});
+	}
+
+	public static class EntityProjection {
+		protected String stringVal;
+	}
+
+	public static class SourceProjection {
+		protected String stringVal;
+		protected Long longVal;
+	}
+
+	@Test
+	public void testSourceFields() {
+		doWithEntityManager(em -> {
+			// only requested fields are returned in _source
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(
+				em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withSourceProjection(SourceProjection.class)
+				.withSourceFields(Collections.singletonList("stringVal"))
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(20, results.getData().size());
+			results.getData().forEach(it -> {
+				Assertions.assertNotNull(it.<SourceProjection>getProjection().stringVal);
+				Assertions.assertNull(it.<SourceProjection>getProjection().longVal);
+			});
+
+			// while the projection alone requests all its fields
+			results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withSourceProjection(SourceProjection.class)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertTrue(results.getData().stream().anyMatch(it -> it.<SourceProjection>getProjection().longVal!=null));
+		});
+	}
+
+	@Test
+	public void testEntityLoaders() {
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		List<Object> ids = new ArrayList<>();
+		for (long id = 1; id <= 20; id++)
+			ids.add(id);
+		ids.add(1L); // duplicates
+		ids.add(2L);
+
+		for (EntityLoader entityLoader: Arrays.asList(new MultiLoadEntityLoader(7), new QueryEntityLoader(7))) {
+			// batches smaller than the number of ids
+			doWithEntityManager(em -> {
+				long queries = statistics.getQueryExecutionCount();
+				Map<Object, HibernateSearchElasticEntity> entities = entityLoader.load(em, HibernateSearchElasticEntity.class, "id", ids);
+				Assertions.assertEquals(20, entities.size());
+				entities.forEach((id, entity) -> Assertions.assertEquals(id, entity.getId()));
+				if (entityLoader instanceof QueryEntityLoader)
+					Assertions.assertEquals(4, statistics.getQueryExecutionCount() - queries);
+			});
+
+			// and smaller than the page size
+			doWithEntityManager(em -> {
+				DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+					new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+				qb.withEntityLoader(entityLoader);
+				Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> page =
+					qb.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+				Assertions.assertEquals(20, page.getData().size());
+				page.getData().forEach(it -> Assertions.assertEquals(it.getId(), it.getEntity().getId().toString()));
+			});
+
+			// duplicate hits get the same entity
+			doWithEntityManager(em -> {
+				EntityLoadingQueryBuilder qb = new EntityLoadingQueryBuilder(em);
+				qb.withEntityLoader(entityLoader);
+				List<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = Arrays.asList(
+					qb.hit("1"), qb.hit("1"), qb.hit("2"));
+				Assertions.assertEquals(2, qb.load(results));
+				Assertions.assertNotNull(results.get(0).getEntity());
+				Assertions.assertSame(results.get(0).getEntity(), results.get(1).getEntity());
+				Assertions.assertEquals(2L, (long) results.get(2).getEntity().getId());
+			});
+		}
+
+		// fetch graph
+		doWithEntityManager(em -> {
+			Map<Object, HibernateSearchElasticEntity> entities = new MultiLoadEntityLoader(7, HibernateSearchElasticEntity.ENTITY_VAL_GRAPH)
+				.load(em, HibernateSearchElasticEntity.class, "id", ids);
+			Assertions.assertEquals(20, entities.size());
+			entities.values().forEach(entity -> Assertions.assertTrue(
+				entityManagerFactory.getPersistenceUnitUtil().isLoaded(entity, "entityVal")));
+		});
+		doWithEntityManager(em -> Assertions.assertThrows(IllegalArgumentException.class, () ->
+			new MultiLoadEntityLoader(7, "unknownGraph").load(em, HibernateSearchElasticEntity.class, "id", ids)));
+	}
+
+	@Test
+	public void testExport() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<QueryMetrics> queries = Collections.synchronizedList(new ArrayList<>());
+		QueryInstrumentation instrumentation = new QueryInstrumentation() {
+			@Override
+			public void onQuery(@Nonnull QueryMetrics metrics) {
+				queries.add(metrics);
+			}
+		};
+
+		try {
+			doWithEntityManager(em -> {
+				try (Stream<HibernateSearchElasticEntity> stream =
+						 new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+							 .withInstrumentation(instrumentation)
+							 .export(2, 15, executor)) {
+					Assertions.assertEquals(100, stream.map(HibernateSearchElasticEntity::getId).distinct().count());
+				}
+			});
+
+			// each scroll page is reported, including the last empty page of each slice
+			Assertions.assertTrue(queries.size() >= 7 + 2);
+			queries.forEach(it -> {
+				Assertions.assertEquals("export", it.getOperation());
+				Assertions.assertTrue(it.getHitCount() <= 15);
+				Assertions.assertTrue(it.getPhaseNanos(QueryPhase.HTTP) > 0);
+			});
+			Assertions.assertEquals(100, queries.stream().mapToInt(QueryMetrics::getHitCount).sum());
+
+			// cancelled before the export
+			doWithEntityManager(em -> {
+				ElasticSearchCancellation cancellation = new ElasticSearchCancellation();
+				cancellation.cancel();
+				try (Stream<HibernateSearchElasticEntity> stream =
+						 new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+							 .withCancellation(cancellation)
+							 .export(2, 15, executor)) {
+					Assertions.assertThrows(CancellationException.class, stream::count);
+				}
+			});
+
+			// cancelled between the pages
+			doWithEntityManager(em -> {
+				ElasticSearchCancellation cancellation = new ElasticSearchCancellation();
+				try (Stream<List<HibernateSearchElasticEntity>> stream =
+						 new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+							 .withCancellation(cancellation)
+							 .exportBatches(2, 15, executor)) {
+					Iterator<List<HibernateSearchElasticEntity>> batches = stream.iterator();
+					Assertions.assertFalse(batches.next().isEmpty());
+					cancellation.cancel();
+					Assertions.assertThrows(CancellationException.class, () -> batches.forEachRemaining(batch -> {}));
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	/**
 	 * Tests if narrowing resultset with full text search works with filters.
 	 */
@@ -192,6 +725,522 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 		});
 	}
 
+	@Test
+	public void testQueryOptimizer() {
+		List<Consumer<DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity>>> queries = Arrays.asList(
+			qb -> qb.or(() -> {
+				qb.add("longVal", SingleValueQueryFilter.of(1L));
+				qb.add("longVal", SingleValueQueryFilter.of(2L));
+				qb.add("longVal", SingleValueQueryFilter.of(3L));
+			}),
+			qb -> qb.and(() -> {
+				qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.ge, 10L));
+				qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.gt, 10L));
+				qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.le, 50L));
+				qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.ne, 20L));
+				qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.ne, 30L));
+			}),
+			qb -> qb.and(() -> {
+				qb.or(() -> {
+					qb.add("booleanVal", SingleValueQueryFilter.of(true));
+					qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.lt, 5L));
+				});
+				qb.and(() -> qb.add("longVal", SingleValueQueryFilter.of(QueryCondition.notNull, null)));
+				qb.add("booleanVal", SingleValueQueryFilter.of(true));
+			})
+		);
+
+		doWithEntityManager(em -> queries.forEach(query -> {
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> optimized =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> notOptimized =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			notOptimized.withQueryOptimizer(null);
+			query.accept(optimized);
+			query.accept(notOptimized);
+
+			Set<Long> optimizedIds = new HashSet<>(), notOptimizedIds = new HashSet<>();
+			optimized.withUnlimitedResults().list().getData().forEach(it -> optimizedIds.add(it.getId()));
+			notOptimized.withUnlimitedResults().list().getData().forEach(it -> notOptimizedIds.add(it.getId()));
+			Assertions.assertEquals(notOptimizedIds, optimizedIds);
+		}));
+	}
+
+	@Test
+	public void testQueryCache() {
+		ElasticSearchQueryCache cache = new ElasticSearchQueryCache().attach(entityManagerFactory);
+
+		doWithEntityManager(em -> {
+			for (int i = 0; i < 2; i++) {
+				Page<HibernateSearchElasticEntity> page = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+					HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withQueryCache(cache).withUnlimitedResults().list();
+				Assertions.assertEquals(100, page.getCount());
+				Assertions.assertEquals(100, page.getData().size());
+
+				Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(
+					em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withQueryCache(cache)
+					.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+				Assertions.assertEquals(100, results.getCount());
+				results.getData().forEach(it -> Assertions.assertNotNull(it.getEntity()));
+
+				Assertions.assertEquals(101, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING)
+					.withQueryCache(cache).count());
+			}
+
+			cache.invalidate(HibernateSearchElasticEntity.class);
+			Assertions.assertEquals(100, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				SEARCHABLE_STRING).withQueryCache(cache).count());
+		});
+	}
+
+	@Test
+	public void testQueryCacheList() {
+		ElasticSearchQueryCache cache = new ElasticSearchQueryCache().attach(entityManagerFactory);
+		List<QueryMetrics> queries = new ArrayList<>();
+		QueryInstrumentation instrumentation = new QueryInstrumentation() {
+			@Override
+			public void onQuery(@Nonnull QueryMetrics metrics) {
+				queries.add(metrics);
+			}
+		};
+		Sortable<SortField> sortable = () -> Collections.singletonList(new SortField() {
+			@Override
+			public String getSortField() {
+				return "longVal";
+			}
+
+			@Override
+			public boolean isDesc() {
+				return true;
+			}
+		});
+		Function<Page<HibernateSearchElasticEntity>, List<Long>> ids = page -> page.getData().stream()
+			.map(HibernateSearchElasticEntity::getId).collect(Collectors.toList());
+
+		doWithEntityManager(em -> {
+			// sorted page from the cached request is the same as from Hibernate Search
+			Pageable pageable = BasePageableRequest.ofDefault().withPageSize(20).withPage(1);
+			Page<HibernateSearchElasticEntity> uncached = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).list(pageable, sortable);
+			for (int i = 0; i < 2; i++) {
+				DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+					new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+				qb.withQueryCache(cache).withInstrumentation(instrumentation);
+				Page<HibernateSearchElasticEntity> cached = qb.list(pageable, sortable);
+				Assertions.assertEquals(uncached.getCount(), cached.getCount());
+				Assertions.assertEquals(20, cached.getData().size());
+				Assertions.assertEquals(ids.apply(uncached), ids.apply(cached));
+			}
+			Assertions.assertEquals(Arrays.asList(false, true), queries.stream().map(QueryMetrics::isCached).collect(Collectors.toList()));
+
+			// unpaged list with unlimited results doesn't fit in the result window and is never cached nor capped
+			queries.clear();
+			uncached = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withUnlimitedResults().list(BasePageableRequest.ofUnpaged(), sortable);
+			for (int i = 0; i < 2; i++) {
+				DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+					new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+				qb.withQueryCache(cache).withInstrumentation(instrumentation).withUnlimitedResults();
+				Page<HibernateSearchElasticEntity> cached = qb.list(BasePageableRequest.ofUnpaged(), sortable);
+				Assertions.assertEquals(100, cached.getData().size());
+				Assertions.assertEquals(ids.apply(uncached), ids.apply(cached));
+			}
+			Assertions.assertEquals(Arrays.asList(false, false), queries.stream().map(QueryMetrics::isCached).collect(Collectors.toList()));
+		});
+	}
+
+	@Test
+	public void testFacets() {
+		doWithEntityManager(em -> {
+			long trueCount = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.add("booleanVal", SingleValueQueryFilter.of(true)).count();
+
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			qb.withTermsFacet("booleanVal", "booleanVal")
+				.withRangeFacet("longVal", "longVal", 10, 50)
+				.withFacetFilter("booleanVal", () -> qb.add("booleanVal", SingleValueQueryFilter.of(true)));
+
+			ElasticSearchFacetedResults<Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> results =
+				qb.highlightWithFacets(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(trueCount, results.getResults().getCount());
+			results.getResults().getData().forEach(it -> Assertions.assertTrue(it.getEntity().isBooleanVal()));
+
+			// the facet ignores its own filter
+			ElasticSearchFacet booleanFacet = results.getFacet("booleanVal");
+			Assertions.assertEquals(100, booleanFacet.getCount("true") + booleanFacet.getCount("false"));
+			Assertions.assertEquals(trueCount, booleanFacet.getCount("true"));
+
+			// while other facets apply it
+			Assertions.assertEquals(3, results.getFacet("longVal").getBuckets().size());
+			Assertions.assertTrue(results.getFacet("longVal").getCounts().values().stream().mapToLong(Long::longValue).sum() <= trueCount);
+		});
+	}
+
+	@Test
+	public void testDateHistogramFacet() {
+		doWithEntityManager(em -> {
+			Map<String, Long> allYears = new TreeMap<>(), trueYears = new TreeMap<>();
+			em.createQuery("select e from HibernateSearchElasticEntity e where e.dateVal is not null", HibernateSearchElasticEntity.class)
+				.getResultList()
+				.forEach(entity -> {
+					String year = entity.getDateVal().withDayOfYear(1).toString();
+					allYears.merge(year, 1L, Long::sum);
+					if (entity.isBooleanVal())
+						trueYears.merge(year, 1L, Long::sum);
+				});
+			Assertions.assertFalse(allYears.isEmpty());
+
+			// buckets of non-empty years
+			ElasticSearchFacetedResults<Long> results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withDateHistogramFacet("dateVal", "dateVal", "year").countWithFacets();
+			Assertions.assertEquals(100L, (long) results.getResults());
+			Assertions.assertEquals(allYears, new TreeMap<>(results.getFacet("dateVal").getCounts()));
+
+			// the facet filter is merged into the count query
+			long trueCount = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.add("booleanVal", SingleValueQueryFilter.of(true)).count();
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			qb.withTermsFacet("booleanVal", "booleanVal")
+				.withDateHistogramFacet("dateVal", "dateVal", "year")
+				.withFacetFilter("booleanVal", () -> qb.add("booleanVal", SingleValueQueryFilter.of(true)));
+			results = qb.countWithFacets();
+			Assertions.assertEquals(trueCount, (long) results.getResults());
+			Assertions.assertEquals(100, results.getFacet("booleanVal").getCount("true") + results.getFacet("booleanVal").getCount("false"));
+			Assertions.assertEquals(trueYears, new TreeMap<>(results.getFacet("dateVal").getCounts()));
+
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> countQb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			countQb.withFacetFilter("booleanVal", () -> countQb.add("booleanVal", SingleValueQueryFilter.of(true)));
+			Assertions.assertEquals(trueCount, countQb.count());
+		});
+	}
+
+	@Test
+	public void testSearchFieldsPruning() {
+		doWithEntityManager(em -> {
+			// associated entity has no FIELD_ID field
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticAssociatedEntity> qb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticAssociatedEntity.class, SEARCHABLE_STRING_PART);
+			Assertions.assertEquals(Collections.singleton(HibernateSearch.FIELD_TEXT), qb.getSearchableFields().keySet());
+			Assertions.assertEquals(1, qb.count());
+
+			// global search uses fields existing in any index
+			Assertions.assertEquals(HibernateSearchElasticFilterQueryBuilder.defaultSearchFields().keySet(),
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, SEARCHABLE_STRING_PART).getSearchableFields().keySet());
+
+			Map<String, FieldSearchStrategy> fields = new HashMap<>();
+			fields.put("notExistingField", FieldSearchStrategy.DEFAULT);
+			Assertions.assertThrows(SearchException.class, () -> new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING_PART, fields));
+		});
+	}
+
+	@Test
+	public void testScaledDecimalFilters() {
+		doWithEntityManager(em -> {
+			// amountVal is id / 100
+			Function<Consumer<DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity>>, Long> count = c -> {
+				DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+					new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, null);
+				c.accept(qb);
+				return qb.count();
+			};
+
+			Assertions.assertEquals(11, (long) count.apply(qb ->
+				qb.add("amountVal", ValueRangeQueryFilter.of(new BigDecimal("0.10"), new BigDecimal("0.20")))));
+			Assertions.assertEquals(9, (long) count.apply(qb ->
+				qb.add("amountVal", ValueRangeQueryFilter.of(new BigDecimal("0.095"), new BigDecimal("0.189")))));
+			Assertions.assertEquals(1, (long) count.apply(qb -> qb.add("amountVal", SingleValueQueryFilter.of(new BigDecimal("0.5")))));
+			Assertions.assertEquals(0, (long) count.apply(qb -> qb.add("amountVal", SingleValueQueryFilter.of(new BigDecimal("0.505")))));
+			Assertions.assertEquals(99, (long) count.apply(qb ->
+				qb.add("amountVal", SingleValueQueryFilter.of(QueryCondition.ne, new BigDecimal("0.50")))));
+			Assertions.assertEquals(5, (long) count.apply(qb ->
+				qb.add("amountVal", SingleValueQueryFilter.of(QueryCondition.gt, new BigDecimal("0.955")))));
+			Assertions.assertEquals(5, (long) count.apply(qb ->
+				qb.add("amountVal", SingleValueQueryFilter.of(QueryCondition.lt, new BigDecimal("0.055")))));
+			Assertions.assertEquals(2, (long) count.apply(qb -> qb.add("amountVal", SingleValueQueryFilter.of(QueryCondition.le, 0.02))));
+		});
+	}
+
+	@Test
+	public void testTermsFilters() {
+		doWithEntityManager(em -> {
+			List<Long> ids = new ArrayList<>();
+			for (long id = 1; id <= 30; id++)
+				ids.add(id);
+
+			Assertions.assertEquals(30, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, null)
+				.addTerms("id", ids).count());
+
+			// the same ids stored in the lookup index
+			ElasticSearchTermsLookup termsLookup = new ElasticSearchTermsLookup("jsonqltermslookup").withThreshold(10);
+			for (int i = 0; i < 2; i++)
+				Assertions.assertEquals(30, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+					SEARCHABLE_STRING).withTermsLookup(termsLookup).addTerms("id", ids).count());
+
+			Assertions.assertEquals(0, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, null)
+				.addTerms("id", Collections.emptyList()).count());
+		});
+	}
+
+	@Test
+	public void testNumericDomainFieldBridge() {
+		doWithEntityManager(em -> {
+			HibernateSearchElasticAssociatedEntity associated = em.find(HibernateSearchElasticAssociatedEntity.class, 1L);
+			long expected = em.createQuery("select count(e) from HibernateSearchElasticEntity e where e.entityVal = :entity", Long.class)
+				.setParameter("entity", associated)
+				.getSingleResult();
+			Assertions.assertTrue(expected > 0);
+
+			// entity filters are converted to ids stored as numbers
+			Assertions.assertEquals(expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				null).add("entityValId", EntityQueryFilter.of(associated)).count());
+			Assertions.assertEquals(100 - expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, null).add("entityValId", EntityQueryFilter.of(QueryCondition.ne, associated)).count());
+
+			// terms filters accept both entities and ids
+			Assertions.assertEquals(expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				null).addTerms("entityValId", Collections.singletonList(associated)).count());
+			Assertions.assertEquals(expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				null).addTerms("entityValId", Arrays.asList(1L, 2L, 3L)).count());
+
+			// and are stored in the lookup index when reaching the threshold
+			ElasticSearchTermsLookup termsLookup = new ElasticSearchTermsLookup("jsonqltermslookup").withThreshold(2);
+			Assertions.assertEquals(expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				null).withTermsLookup(termsLookup).addTerms("entityValId", Arrays.asList(associated, 2L)).count());
+			Assertions.assertEquals(expected, new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				null).withTermsLookup(termsLookup).addTerms("entityValId", Collections.singletonList(associated)).count());
+		});
+	}
+
+	@Test
+	public void testDateRangeRounding() {
+		doWithEntityManager(em -> {
+			Instant instant = Instant.parse("2020-03-15T10:15:30Z");
+			Instant hour = Instant.parse("2020-03-15T10:00:00Z");
+			Instant day = Instant.parse("2020-03-15T00:00:00Z");
+			LocalDate localDate = LocalDate.of(2020, 3, 15);
+
+			DateRangeQueryBuilder hours = new DateRangeQueryBuilder(em);
+			hours.withDateRangeRounding(ChronoUnit.HOURS);
+			Assertions.assertEquals(hour, hours.round(instant, false));
+			Assertions.assertEquals(hour.plus(1, ChronoUnit.HOURS), hours.round(instant, true));
+			Assertions.assertEquals(hour, hours.round(hour, true)); // already rounded upper bound is kept
+			Assertions.assertEquals(Date.from(hour), hours.round(Date.from(instant), false));
+			Assertions.assertEquals(Date.from(hour.plus(1, ChronoUnit.HOURS)), hours.round(Date.from(instant), true));
+			Assertions.assertEquals(localDate, hours.round(localDate, true));
+
+			DateRangeQueryBuilder days = new DateRangeQueryBuilder(em);
+			days.withDateRangeRounding(ChronoUnit.DAYS);
+			Assertions.assertEquals(day, days.round(instant, false));
+			Assertions.assertEquals(day.plus(1, ChronoUnit.DAYS), days.round(instant, true));
+			Assertions.assertEquals(day, days.round(day, true));
+			Assertions.assertEquals(Date.from(day), days.round(Date.from(instant), false));
+			Assertions.assertEquals(Date.from(day.plus(1, ChronoUnit.DAYS)), days.round(Date.from(instant), true));
+			Assertions.assertEquals(localDate, days.round(localDate, false));
+
+			DateRangeQueryBuilder none = new DateRangeQueryBuilder(em);
+			Assertions.assertEquals(instant, none.round(instant, true));
+			Assertions.assertThrows(IllegalArgumentException.class, () -> none.withDateRangeRounding(ChronoUnit.MONTHS));
+
+			// request_cache is sent only when all date ranges are rounded
+			DateRangeQueryBuilder rounded = new DateRangeQueryBuilder(em);
+			rounded.withDateRangeRounding(ChronoUnit.DAYS).withRequestCache(true);
+			rounded.range(instant, null).range(Date.from(instant), localDate);
+			Assertions.assertTrue(rounded.isRequestCacheUsed());
+			Assertions.assertEquals("true", rounded.params().get("request_cache"));
+
+			DateRangeQueryBuilder localDates = new DateRangeQueryBuilder(em);
+			localDates.withRequestCache(true);
+			localDates.range(localDate, localDate.plusDays(7));
+			Assertions.assertTrue(localDates.isRequestCacheUsed());
+
+			DateRangeQueryBuilder exact = new DateRangeQueryBuilder(em);
+			exact.withRequestCache(true);
+			exact.range(localDate, null).range(null, instant);
+			Assertions.assertFalse(exact.isRequestCacheUsed());
+			Assertions.assertFalse(exact.params().containsKey("request_cache"));
+
+			DateRangeQueryBuilder partiallyRounded = new DateRangeQueryBuilder(em);
+			partiallyRounded.withRequestCache(true);
+			partiallyRounded.range(instant, null);
+			partiallyRounded.withDateRangeRounding(ChronoUnit.DAYS);
+			partiallyRounded.range(instant, null);
+			Assertions.assertFalse(partiallyRounded.isRequestCacheUsed());
+
+			Assertions.assertFalse(new DateRangeQueryBuilder(em).range(localDate, null).params().containsKey("request_cache"));
+		});
+	}
+
+	@Test
+	public void testTimeoutsAndCancellation() {
+		doWithEntityManager(em -> {
+			ElasticSearchPage<?> page = (ElasticSearchPage<?>) new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withTimeout(Duration.ofSeconds(10))
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertFalse(page.isPartial());
+			Assertions.assertEquals(100, page.getCount());
+
+			page = (ElasticSearchPage<?>) new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class,
+				SEARCHABLE_STRING).withTerminateAfter(1).highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertTrue(page.isTerminatedEarly());
+			Assertions.assertTrue(page.isPartial());
+			Assertions.assertTrue(page.getCount() < 100);
+
+			SearchException e = Assertions.assertThrows(SearchException.class, () -> new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withDeadline(Duration.ofNanos(1)).highlight());
+			Assertions.assertTrue(e.getCause() instanceof TimeoutException);
+
+			ElasticSearchCancellation cancellation = new ElasticSearchCancellation();
+			cancellation.cancel();
+			Assertions.assertThrows(CancellationException.class, () -> new DefaultHibernateSearchElasticFilterQueryBuilder<>(em,
+				HibernateSearchElasticEntity.class, SEARCHABLE_STRING).withCancellation(cancellation).highlight());
+
+			// cancelling the future cancels the handle
+			ElasticSearchCancellation asyncCancellation = new ElasticSearchCancellation();
+			new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withCancellation(asyncCancellation).countAsync().cancel(false);
+			Assertions.assertTrue(asyncCancellation.isCancelled());
+
+			// without the handle, cancelling one request doesn't affect next requests of the same builder
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			qb.countAsync().cancel(false);
+			Assertions.assertNull(qb.getCancellation());
+			Assertions.assertEquals(100L, (long) qb.countAsync().join());
+			Assertions.assertEquals(100, qb.count());
+		});
+	}
+
+	@Test
+	public void testCustomPageType() {
+		doWithEntityManager(em -> {
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> page =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity>(em, HibernateSearchElasticEntity.class,
+					SEARCHABLE_STRING) {
+					@Nonnull
+					@Override
+					protected <T> Page<T> buildPageableResult(Integer pageSize, Integer page, long count, List<T> data) {
+						return new CustomPage<>(pageSize, page, count, data);
+					}
+				}.withTerminateAfter(1).highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertTrue(page instanceof CustomPage);
+		});
+	}
+
+	public static class CustomPage<T> extends Page<T> {
+		public CustomPage(Integer pageSize, Integer page, long count, List<T> data) {
+			super(pageSize, page, count, data);
+		}
+	}
+
+	@Test
+	public void testHighlightOptions() {
+		doWithEntityManager(em -> {
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(
+				em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withHighlightOptions(new ElasticSearchHighlightOptions().withType(ElasticSearchHighlightOptions.HighlighterType.UNIFIED)
+					.withFragmentSize(50).withNumberOfFragments(1))
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(100, results.getCount());
+			results.getData().forEach(it -> Assertions.assertTrue(it.getHighlight().contains("<em>middle</em>")));
+
+			// only top hits highlighted
+			results = new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withHighlightOptions(new ElasticSearchHighlightOptions().withTopHits(5))
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20).withPage(2));
+			Assertions.assertEquals(100, results.getCount());
+			Assertions.assertEquals(20, results.getData().size());
+			for (int i = 0; i < results.getData().size(); i++) {
+				ElasticSearchHighlightedResults<HibernateSearchElasticEntity> result = results.getData().get(i);
+				Assertions.assertNotNull(result.getEntity());
+				Assertions.assertEquals(i < 5 ? HIGHLIGHTED_SEARCHABLE_STRING : "", result.getHighlight());
+			}
+
+			// the same results shape in multi search, where the split query doesn't shift responses of next queries
+			ElasticSearchMultiSearch multiSearch = new ElasticSearchMultiSearch();
+			CompletableFuture<Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> multiResults = multiSearch.highlight(
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+					.withHighlightOptions(new ElasticSearchHighlightOptions().withTopHits(5)),
+				BasePageableRequest.ofDefault().withPageSize(20).withPage(2));
+			CompletableFuture<Long> count = multiSearch.count(new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, null)
+				.add("booleanVal", SingleValueQueryFilter.of(true)));
+			multiSearch.execute();
+
+			Assertions.assertEquals(100, multiResults.join().getCount());
+			Assertions.assertEquals(20, multiResults.join().getData().size());
+			for (int i = 0; i < multiResults.join().getData().size(); i++) {
+				ElasticSearchHighlightedResults<HibernateSearchElasticEntity> result = multiResults.join().getData().get(i);
+				Assertions.assertNotNull(result.getEntity());
+				Assertions.assertEquals(i < 5 ? HIGHLIGHTED_SEARCHABLE_STRING : "", result.getHighlight());
+			}
+			Assertions.assertEquals(
+				results.getData().stream().map(it -> it.getEntity().getId()).collect(Collectors.toSet()),
+				multiResults.join().getData().stream().map(it -> it.getEntity().getId()).collect(Collectors.toSet()));
+			Assertions.assertEquals(50L, (long) count.join());
+		});
+	}
+
+	@Test
+	public void testInstrumentation() {
+		List<QueryMetrics> queries = Collections.synchronizedList(new ArrayList<>());
+		List<String> slowQueries = Collections.synchronizedList(new ArrayList<>());
+		QueryInstrumentation instrumentation = new QueryInstrumentation() {
+			@Override
+			public void onQuery(@Nonnull QueryMetrics metrics) {
+				queries.add(metrics);
+			}
+
+			@Override
+			public void onSlowQuery(@Nonnull QueryMetrics metrics, @Nonnull String query) {
+				slowQueries.add(query);
+			}
+		};
+
+		doWithEntityManager(em -> {
+			new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withInstrumentation(instrumentation).withSlowQueryThreshold(0)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withInstrumentation(instrumentation).count();
+		});
+
+		Assertions.assertEquals(2, queries.size());
+		QueryMetrics highlight = queries.get(0);
+		Assertions.assertEquals(HibernateSearchElasticEntity.class, highlight.getEntityType());
+		Assertions.assertEquals(100, highlight.getTotalHits());
+		Assertions.assertEquals(20, highlight.getHitCount());
+		Assertions.assertEquals(20, highlight.getHydratedCount());
+		Assertions.assertTrue(highlight.getTook() >= 0);
+		Assertions.assertTrue(highlight.getPhaseNanos(QueryPhase.HTTP) > 0);
+		Assertions.assertTrue(highlight.getPhaseNanos(QueryPhase.HYDRATE) > 0);
+		Assertions.assertEquals(100, queries.get(1).getTotalHits());
+		Assertions.assertEquals(1, slowQueries.size());
+
+		// overlapping asynchronous executions of the same builder report their own metrics
+		queries.clear();
+		doWithEntityManager(em -> {
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> builder =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			builder.withInstrumentation(instrumentation);
+			CompletableFuture<?> highlightFuture = builder.highlightAsync(BasePageableRequest.ofDefault().withPageSize(20));
+			CompletableFuture<?> countFuture = builder.countAsync();
+			CompletableFuture.allOf(highlightFuture, countFuture).join();
+		});
+
+		Assertions.assertEquals(2, queries.size());
+		QueryMetrics highlightAsync = queries.stream().filter(it -> it.getOperation().equals("highlightAsync")).findFirst().get();
+		QueryMetrics countAsync = queries.stream().filter(it -> it.getOperation().equals("countAsync")).findFirst().get();
+		Assertions.assertNotSame(highlightAsync, countAsync);
+		Assertions.assertEquals(20, highlightAsync.getHitCount());
+		Assertions.assertEquals(20, highlightAsync.getHydratedCount());
+		Assertions.assertEquals(100, countAsync.getTotalHits());
+		Assertions.assertEquals(0, countAsync.getHitCount());
+		Assertions.assertEquals(0, countAsync.getHydratedCount());
+	}
+
 	@Test
 	public void testMatchAllQuery() {
 		doWithEntityManager(em -> {
@@ -202,11 +1251,149 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 			Assertions.assertEquals(100, results.getCount()); // all results should be returned
 			results.getData().forEach(it -> {
 				Assertions.assertTrue(it.getHighlight().contains(SEARCHABLE_STRING));
+				Assertions.assertTrue(it.getHighlight().length() <= HibernateSearchElasticFilterQueryBuilder.MAX_HIGHLIGHT_LENGTH);
 				Assertions.assertNotNull(it.getEntity());
 			}); // test manual highlight
 		});
 	}
 
+	@Test
+	public void testNoMatchHighlight() {
+		List<QueryMetrics> queries = new ArrayList<>();
+		QueryInstrumentation instrumentation = new QueryInstrumentation() {
+			@Override
+			public void onQuery(@Nonnull QueryMetrics metrics) {
+				queries.add(metrics);
+			}
+		};
+
+		doWithEntityManager(em -> {
+			HibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity, ElasticSearchHighlightedResults<HibernateSearchElasticEntity>,
+				Page<HibernateSearchElasticEntity>, Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>>> qb =
+				new HibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, "*");
+			qb.setMaxHighlightLength(10);
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = qb.withInstrumentation(instrumentation)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			Assertions.assertEquals(100, results.getCount());
+			Assertions.assertEquals(20, results.getData().size());
+			results.getData().forEach(it -> {
+				Assertions.assertFalse(it.getHighlight().isEmpty());
+				Assertions.assertTrue(it.getHighlight().length() <= 10);
+				Assertions.assertNotNull(it.getEntity());
+			});
+
+			// ES returns the beginning of searchable fields truncated to the max highlight length, without _source
+			JsonObject query = new JsonParser().parse(queries.get(0).getQuery()).getAsJsonObject();
+			Assertions.assertEquals(new JsonPrimitive(false), query.get("_source"));
+			Assertions.assertEquals(10, query.getAsJsonObject("highlight").get("no_match_size").getAsInt());
+
+			// the full text query has nothing to truncate
+			queries.clear();
+			new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING)
+				.withInstrumentation(instrumentation)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(20));
+			query = new JsonParser().parse(queries.get(0).getQuery()).getAsJsonObject();
+			Assertions.assertEquals(new JsonPrimitive(false), query.get("_source"));
+			Assertions.assertFalse(query.getAsJsonObject("highlight").has("no_match_size"));
+		});
+	}
+
+	@Test
+	public void testNestedListFilters() {
+		doWithEntityManager(em -> {
+			List<HibernateSearchElasticEntity> entities = em.createQuery("select e from HibernateSearchElasticEntity e",
+				HibernateSearchElasticEntity.class).getResultList();
+			List<LocalDate> dates = entities.stream().map(HibernateSearchElasticEntity::getDateVal).filter(it -> it!=null)
+				.distinct().sorted().collect(Collectors.toList());
+			Assertions.assertFalse(dates.isEmpty());
+			Function<Integer, LocalDate> date = sixth -> dates.get(sixth * (dates.size() - 1) / 6);
+
+			DateRangeQueryFilter first = DateRangeQueryFilter.of(date.apply(0), date.apply(3));
+			DateRangeQueryFilter second = DateRangeQueryFilter.of(date.apply(1), date.apply(4));
+			DateRangeQueryFilter third = DateRangeQueryFilter.of(date.apply(5), null);
+
+			// (first and second) or third
+			ListQueryFilter<QueryFilter> andList = ListQueryFilter.of(first, second);
+			andList.setConjunction(QueryConjunction.and);
+			ListQueryFilter<QueryFilter> orList = ListQueryFilter.of(andList, third);
+			orList.setConjunction(QueryConjunction.or);
+			Set<Long> expected = entities.stream()
+				.filter(it -> (inRange(it.getDateVal(), first) && inRange(it.getDateVal(), second)) || inRange(it.getDateVal(), third))
+				.map(HibernateSearchElasticEntity::getId).collect(Collectors.toSet());
+
+			JsonObject filter = assertListFilter(em, orList, expected);
+			List<JsonObject> should = clauses(filter, "should");
+			Assertions.assertEquals(1, clauses(filter, "must").size());
+			Assertions.assertTrue(clauses(filter, "must").get(0).has("type")); // entity type filter only
+			Assertions.assertEquals(2, should.size());
+			Assertions.assertEquals(2, clauses(should.get(0).getAsJsonObject("bool"), "must").size()); // and list bool under or list
+			Assertions.assertTrue(should.get(1).has("range"));
+
+			// (first or second) and third
+			orList = ListQueryFilter.of(first, second);
+			orList.setConjunction(QueryConjunction.or);
+			andList = ListQueryFilter.of(orList, third);
+			andList.setConjunction(QueryConjunction.and);
+			expected = entities.stream()
+				.filter(it -> (inRange(it.getDateVal(), first) || inRange(it.getDateVal(), second)) && inRange(it.getDateVal(), third))
+				.map(HibernateSearchElasticEntity::getId).collect(Collectors.toSet());
+
+			filter = assertListFilter(em, andList, expected);
+			List<JsonObject> must = clauses(filter, "must");
+			Assertions.assertEquals(2, must.size());
+			Assertions.assertTrue(must.get(1).has("type"));
+			JsonObject listBool = must.get(0).getAsJsonObject("bool"); // and list bool under the filter bool
+			Assertions.assertEquals(2, clauses(listBool, "should").size()); // or list clauses in the and list bool
+			Assertions.assertEquals(1, clauses(listBool, "must").size());
+		});
+	}
+
+	/**
+	 * Checks results of the list filter with and without query optimizer, and returns the not optimized filter bool of the query.
+	 */
+	protected JsonObject assertListFilter(EntityManager em, ListQueryFilter<QueryFilter> filter, Set<Long> expected) {
+		List<QueryMetrics> queries = new ArrayList<>();
+		QueryInstrumentation instrumentation = new QueryInstrumentation() {
+			@Override
+			public void onQuery(@Nonnull QueryMetrics metrics) {
+				queries.add(metrics);
+			}
+		};
+
+		for (boolean optimized: Arrays.asList(true, false)) {
+			DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> qb =
+				new DefaultHibernateSearchElasticFilterQueryBuilder<>(em, HibernateSearchElasticEntity.class, SEARCHABLE_STRING);
+			if (!optimized)
+				qb.withQueryOptimizer(null);
+			Page<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results = qb.withInstrumentation(instrumentation)
+				.add("dateVal", filter)
+				.highlight(BasePageableRequest.ofDefault().withPageSize(100));
+			Assertions.assertEquals(expected.size(), results.getCount());
+			Assertions.assertEquals(expected, results.getData().stream().map(it -> it.getEntity().getId()).collect(Collectors.toSet()));
+		}
+
+		JsonObject query = new JsonParser().parse(queries.get(1).getQuery()).getAsJsonObject();
+		List<JsonObject> filters = clauses(query.getAsJsonObject("query").getAsJsonObject("bool"), "filter");
+		Assertions.assertEquals(1, filters.size());
+		return filters.get(0).getAsJsonObject("bool");
+	}
+
+	protected List<JsonObject> clauses(JsonObject bool, String occurrence) {
+		List<JsonObject> clauses = new ArrayList<>();
+		JsonElement element = bool.get(occurrence);
+		if (element!=null && element.isJsonArray())
+			element.getAsJsonArray().forEach(it -> clauses.add(it.getAsJsonObject()));
+		else if (element!=null)
+			clauses.add(element.getAsJsonObject());
+		return clauses;
+	}
+
+	protected boolean inRange(LocalDate date, DateRangeQueryFilter filter) {
+		return date!=null
+			&& (filter.calculateFrom()==null || !date.isBefore(filter.calculateFrom()))
+			&& (filter.calculateTo()==null || date.isBefore(filter.calculateTo()));
+	}
+
 	protected void doWithEntityManager(Consumer<EntityManager> c) {
 		EntityManager entityManager = entityManagerFactory.createEntityManager();
 		entityManager.getTransaction().begin();
@@ -250,5 +1437,86 @@ public class HibernateSearchElasticQueryBuilderTest extends JsonQLBaseQueryBuild
 		
 	}
 
+	/**
+	 * Exposes entity loading internals to tests.
+	 */
+	protected static class EntityLoadingQueryBuilder extends DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> {
+
+		public EntityLoadingQueryBuilder(EntityManager entityManager) {
+			super(entityManager, HibernateSearchElasticEntity.class, null);
+		}
+
+		public ElasticSearchHighlightedResults<HibernateSearchElasticEntity> hit(String id) {
+			return buildHighlight(id, HibernateSearchElasticEntity.class.getName(), 1, "");
+		}
+
+		public int load(List<ElasticSearchHighlightedResults<HibernateSearchElasticEntity>> results) {
+			return loadEntities(results);
+		}
+
+	}
+
+	/**
+	 * Exposes date range rounding internals to tests.
+	 */
+	protected static class DateRangeQueryBuilder extends DefaultHibernateSearchElasticFilterQueryBuilder<HibernateSearchElasticEntity> {
+
+		public DateRangeQueryBuilder(EntityManager entityManager) {
+			super(entityManager, HibernateSearchElasticEntity.class, null);
+		}
+
+		public Object round(Object value, boolean upper) {
+			return roundDateRangeBound(value, upper);
+		}
+
+		public DateRangeQueryBuilder range(Object from, Object to) {
+			addDateRangeQuery("dateVal", from, to);
+			return this;
+		}
+
+		public Map<String, String> params() {
+			return searchParams();
+		}
+
+	}
+
+	/**
+	 * Records endpoints and parameters of requests sent to ES.
+	 */
+	protected static class RequestRecordingQueryBuilder<E> extends DefaultHibernateSearchElasticFilterQueryBuilder<E> {
+
+		public final List<String> endpoints = Collections.synchronizedList(new ArrayList<>());
+		public final List<Map<String, String>> params = Collections.synchronizedList(new ArrayList<>());
+
+		public RequestRecordingQueryBuilder(EntityManager entityManager, Class<E> entityClass, String q) {
+			super(entityManager, entityClass, q);
+		}
+
+		public RequestRecordingQueryBuilder(EntityManager entityManager, String q) {
+			super(entityManager, q);
+		}
+
+		@Override
+		protected Response performRequest(String endpoint, Map<String, String> params, String body, ContentType contentType,
+										  @Nullable QueryMetrics metrics) throws IOException {
+			record(endpoint, params);
+			return super.performRequest(endpoint, params, body, contentType, metrics);
+		}
+
+		@Override
+		protected CompletableFuture<Response> performRequestAsync(String endpoint, Map<String, String> params, String body,
+																  ContentType contentType, @Nullable QueryMetrics metrics,
+																  @Nullable ElasticSearchCancellation cancellation) {
+			record(endpoint, params);
+			return super.performRequestAsync(endpoint, params, body, contentType, metrics, cancellation);
+		}
+
+		protected void record(String endpoint, Map<String, String> params) {
+			this.endpoints.add(endpoint);
+			this.params.add(new HashMap<>(params));
+		}
+
+	}
+
 
 }
@@ -0,0 +1,21 @@
+package com.lifeinide.jsonql.hibernate.search.elastic.test;
+
+import com.lifeinide.jsonql.core.test.IJsonQLBaseTestEntity;
+import com.lifeinide.jsonql.hibernate.search.elastic.bridge.BaseElasticNumericDomainFieldBridge;
+
+/**
+ * @author Lukasz Frankowski
+ */
+public class NumericDomainFieldBridge extends BaseElasticNumericDomainFieldBridge<IJsonQLBaseTestEntity<Long>> {
+
+	@Override
+	public Long getEntityId(IJsonQLBaseTestEntity<Long> entity) {
+		return entity.getId();
+	}
+
+	@Override
+	public boolean isEntity(Object entity) {
+		return entity instanceof IJsonQLBaseTestEntity;
+	}
+
+}